@@ -0,0 +1,49 @@
+package configutil;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings shared by every tool in this process. A setting is read from its environment variable, then from the
+ * properties file (db.properties in the working directory unless {@link #configure} loaded another one), then falls
+ * back to the default.
+ */
+public class Settings {
+
+    private static Properties configuration;
+
+    private Settings() {
+    }
+
+    /**
+     * Loads the settings from {@code file} instead of db.properties. Environment variables still take precedence.
+     */
+    public static synchronized void configure(String file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        configuration = properties;
+    }
+
+    private static synchronized Properties configuration() {
+        if (configuration == null) {
+            try {
+                configure("db.properties");
+            } catch (IOException e) {
+                configuration = new Properties();
+            }
+        }
+        return configuration;
+    }
+
+    public static String get(String envKey, String propKey, String defaultValue) {
+        return System.getenv().getOrDefault(envKey, configuration().getProperty(propKey, defaultValue));
+    }
+
+    public static int getInt(String envKey, String propKey, int defaultValue) {
+        return Integer.parseInt(get(envKey, propKey, String.valueOf(defaultValue)));
+    }
+}
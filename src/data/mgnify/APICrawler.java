@@ -1,55 +1,74 @@
 package data.mgnify;
 
+import jsonutil.JsonStreams;
+
 import javax.json.Json;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
-import java.io.*;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
 public class APICrawler {
 
     public static JsonObject getPageData(int page, int pageSize) {
 
         System.out.println("Reading page: " + page);
-        String apiBase = "https://www.ebi.ac.uk/metagenomics/api/v1/analyses?page=" + page + "&page_size=" + pageSize + "&format=json";
-        return getJsonObjectFromURL(apiBase);
+        return getJsonObjectFromURL(pageURL(page, pageSize));
     }
 
 
+    /**
+     * Fetches an analyses page without parsing it; see {@link AnalysisPage}.
+     */
+    public static CompletableFuture<byte[]> fetchPageData(int page, int pageSize) {
+        return HttpCrawler.get().fetchBody(pageURL(page, pageSize)).whenComplete((pageData, e) -> {
+            if (e == null) {
+                System.out.println("Read page: " + page);
+            }
+        });
+    }
+
+    private static String pageURL(int page, int pageSize) {
+        return "https://www.ebi.ac.uk/metagenomics/api/v1/analyses?page=" + page + "&page_size=" + pageSize + "&format=json";
+    }
+
+    /**
+     * Returns meta.pagination of the first analyses page. The page is streamed, so its data is never built as a tree.
+     */
     public static JsonObject getPagination(int pageSize) {
-        String apiBase = "https://www.ebi.ac.uk/metagenomics/api/v1/analyses?page=1&page_size=" + pageSize + "&format=json";
-        try(InputStream is = new URL(apiBase).openStream();
-            JsonReader reader = Json.createReader(new InputStreamReader(is, StandardCharsets.UTF_8))){
-            JsonObject firstPage = reader.readObject();
-            JsonObject meta = firstPage.getJsonObject("meta");
-            JsonObject pagination = meta.getJsonObject("pagination");
-            return pagination;
-        }catch (IOException ioe) {
+        byte[] firstPage;
+        try {
+            firstPage = HttpCrawler.get().getBody(pageURL(1, pageSize));
+        } catch (IOException ioe) {
             ioe.printStackTrace();
+            return null;
         }
-        return null;
+        JsonObjectBuilder pagination = Json.createObjectBuilder();
+        try (JsonParser parser = Json.createParser(new ByteArrayInputStream(firstPage))) {
+            JsonStreams.walk(parser, parser.next(), (path, value) -> {
+                if (path.startsWith("meta/pagination/")) {
+                    pagination.add(path.substring("meta/pagination/".length()), value);
+                }
+            }, null);
+        }
+        return pagination.build();
     }
 
     public static JsonObject getJsonObjectFromURL(String url) {
-        try(InputStream is = new URL(url).openStream();
-            JsonReader reader = Json.createReader(new InputStreamReader(is, StandardCharsets.UTF_8))){
-            JsonObject pageObj = reader.readObject();
-            return pageObj;
-        }catch (IOException ioe) {
+        try {
+            return HttpCrawler.get().getJson(url);
+        } catch (IOException ioe) {
             ioe.printStackTrace();
         }
         return null;
     }
 
     public static void downloadFile(String url, String filePath) {
-        try (BufferedInputStream in = new BufferedInputStream(new URL(url).openStream());
-             FileOutputStream fileOutputStream = new FileOutputStream(filePath)) {
-            byte[] dataBuffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = in.read(dataBuffer, 0, 1024)) != -1) {
-                fileOutputStream.write(dataBuffer, 0, bytesRead);
-            }
+        try {
+            FileDownloader.get().download(url, Paths.get(filePath));
         } catch (IOException e) {
             e.printStackTrace();
         }
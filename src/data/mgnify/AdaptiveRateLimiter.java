@@ -0,0 +1,134 @@
+package data.mgnify;
+
+import java.net.http.HttpHeaders;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+import java.util.OptionalDouble;
+
+/**
+ * Token bucket whose rate follows the server. Every response that is neither throttled nor unusually slow raises the
+ * rate by about one request per second per second, up to {@code maxRate}. A 429 or 503 halves it and pauses all
+ * requests for the Retry-After period; a response more than three times slower than the running average lowers it
+ * by a fifth. When the server announces its remaining quota (RateLimit-Remaining / X-RateLimit-Remaining with the
+ * matching Reset header) the rate is capped so the quota lasts until the reset.
+ */
+public class AdaptiveRateLimiter {
+
+    private static final double SLOW_FACTOR = 3.0;
+    private static final int LATENCY_WARMUP = 20;
+
+    private final double minRate;
+    private final double maxRate;
+    // guarded by this
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long pausedUntil = 0;
+    private double averageLatency = 0;
+    private long samples = 0;
+
+    public AdaptiveRateLimiter(double minRate, double maxRate) {
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.rate = maxRate;
+        this.tokens = 1;
+    }
+
+    /**
+     * Blocks until the next request may be sent.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+        // tokens may go negative: later callers queue behind earlier reservations
+        tokens -= 1;
+        long wait = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        return Math.max(wait, pausedUntil - now);
+    }
+
+    /**
+     * Adjusts the rate after a response with {@code status} that took {@code latencyNanos}.
+     */
+    public synchronized void onResponse(int status, HttpHeaders headers, long latencyNanos) {
+        if (status == 429 || status == 503) {
+            setRate(rate / 2);
+            long retryAfter = retryAfterMillis(headers);
+            if (retryAfter > 0) {
+                pausedUntil = Math.max(pausedUntil, System.nanoTime() + retryAfter * 1_000_000L);
+            }
+            return;
+        }
+        OptionalDouble quotaRate = quotaRate(headers);
+        if (samples >= LATENCY_WARMUP && latencyNanos > SLOW_FACTOR * averageLatency) {
+            setRate(rate * 0.8);
+        } else {
+            setRate(rate + 1 / rate);
+        }
+        if (quotaRate.isPresent() && quotaRate.getAsDouble() < rate) {
+            setRate(quotaRate.getAsDouble());
+        }
+        averageLatency = samples == 0 ? latencyNanos : 0.95 * averageLatency + 0.05 * latencyNanos;
+        samples++;
+    }
+
+    /**
+     * Lowers the rate after a request failed without a response, e.g. on a timeout.
+     */
+    public synchronized void onFailure() {
+        setRate(rate / 2);
+    }
+
+    private void setRate(double newRate) {
+        rate = Math.max(minRate, Math.min(maxRate, newRate));
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    static long retryAfterMillis(HttpHeaders headers) {
+        Optional<String> value = headers.firstValue("Retry-After");
+        if (value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.get().trim()) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value.get().trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (RuntimeException ignored) {
+                return 0;
+            }
+        }
+    }
+
+    private static OptionalDouble quotaRate(HttpHeaders headers) {
+        Optional<String> remaining = headers.firstValue("RateLimit-Remaining")
+                .or(() -> headers.firstValue("X-RateLimit-Remaining"));
+        Optional<String> reset = headers.firstValue("RateLimit-Reset")
+                .or(() -> headers.firstValue("X-RateLimit-Reset"));
+        if (remaining.isEmpty() || reset.isEmpty()) {
+            return OptionalDouble.empty();
+        }
+        try {
+            long resetSeconds = Long.parseLong(reset.get().trim());
+            // X-RateLimit-Reset is often an epoch timestamp rather than a delay
+            if (resetSeconds > 1_000_000_000L) {
+                resetSeconds -= System.currentTimeMillis() / 1000;
+            }
+            return OptionalDouble.of(Long.parseLong(remaining.get().trim()) / (double) Math.max(1, resetSeconds));
+        } catch (NumberFormatException e) {
+            return OptionalDouble.empty();
+        }
+    }
+}
@@ -1,45 +1,102 @@
 package data.mgnify;
 
-import jsonutil.JsonUtil;
+import configutil.Settings;
+import jsonutil.JsonStreams;
 
-import javax.json.JsonArray;
-import javax.json.JsonObject;
-import javax.json.JsonString;
-import javax.json.JsonValue;
-import java.io.File;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+/**
+ * One page of the analyses endpoint. The page is parsed as a stream of events: each analysis is read straight into
+ * an {@link Assembly} and copied to {@code assemblies/<id>.json} on the way, so the page is never built as a tree.
+ * The raw page is written to {@code pages/} unless MGNIFY_ARCHIVE_PAGES is false.
+ */
 public class AnalysisPage {
 
-
-    private final JsonObject pageData;
+    private final byte[] pageData;
     private final int pageNumber;
 
-    public AnalysisPage(JsonObject pageData, String outDir, int pageNumber) {
+    public AnalysisPage(byte[] pageData, String outDir, int pageNumber) {
         this.pageData = pageData;
         this.pageNumber = pageNumber;
-        JsonUtil.writeJSON2File(this.pageData, outDir + File.separator + "pages" + File.separatorChar + "page" + pageNumber + ".json");
+        if (Boolean.parseBoolean(Settings.get("MGNIFY_ARCHIVE_PAGES", "mgnify.archive.pages", "true"))) {
+            try {
+                Files.write(Paths.get(outDir, "pages", "page" + pageNumber + ".json"), pageData);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
     }
 
+    /**
+     * Creates the assemblies of this page. Their samples are resolved concurrently through the shared
+     * {@link SampleResolver}, which fetches each distinct sample once; the assemblies are returned in page order.
+     * Assemblies whose sample could not be fetched are logged and left out.
+     */
     public List<Assembly> parse(String outDir) {
         List<Assembly> assemblies = new ArrayList<>();
 
-        JsonArray data = this.pageData.getJsonArray("data");
-        for (JsonValue datum : data) {
-            JsonObject attributes = datum.asJsonObject().getJsonObject("attributes");
-            JsonString experimentType = attributes.getJsonString("experiment-type");
-            if(!experimentType.getString().equals("assembly"))
-                continue;
-            Assembly assembly = createAssembly(datum.asJsonObject(), outDir);
-            assemblies.add(assembly);
+        try (JsonParser parser = Json.createParser(new ByteArrayInputStream(pageData))) {
+            parser.next();
+            while (parser.next() == JsonParser.Event.KEY_NAME) {
+                String key = parser.getString();
+                JsonParser.Event event = parser.next();
+                if (!key.equals("data") || event != JsonParser.Event.START_ARRAY) {
+                    JsonStreams.walk(parser, event, null, null);
+                    continue;
+                }
+                while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                    StringWriter json = new StringWriter();
+                    Assembly assembly;
+                    try (JsonGenerator mirror = Json.createGenerator(json)) {
+                        assembly = Assembly.read(parser, event, mirror);
+                    }
+                    if (assembly == null)
+                        continue;
+                    System.out.println(assembly.getId());
+                    archive(Paths.get(outDir, "assemblies", assembly.getId() + ".json"), json.toString());
+                    assemblies.add(assembly);
+                }
+            }
         }
-        return assemblies;
-    }
 
-    private Assembly createAssembly(JsonObject assemblyObject, String outDir) {
-        Assembly assembly = new Assembly(assemblyObject, outDir);
-        return assembly;
+        Map<String, String> sampleLinks = new LinkedHashMap<>();
+        for (Assembly assembly : assemblies) {
+            sampleLinks.putIfAbsent(assembly.getSampleId(), assembly.getSampleLink());
+        }
+        Map<String, CompletableFuture<Sample>> samples = SampleResolver.get().resolveAll(sampleLinks, outDir);
+        List<Assembly> resolved = new ArrayList<>(assemblies.size());
+        for (Assembly assembly : assemblies) {
+            try {
+                assembly.setSample(samples.get(assembly.getSampleId()).join());
+                resolved.add(assembly);
+            } catch (CompletionException e) {
+                System.err.println("Page " + pageNumber + ": skipping " + assembly.getId() + ", sample " +
+                        assembly.getSampleId() + " could not be fetched: " + e.getCause());
+            }
+        }
+        return resolved;
     }
 
+    private static void archive(Path file, String json) {
+        try {
+            Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
 }
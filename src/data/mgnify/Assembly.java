@@ -1,126 +1,112 @@
 package data.mgnify;
 
+import jsonutil.JsonStreams;
 import jsonutil.JsonUtil;
 
 import javax.json.*;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * An MGnify analysis of an assembly. Only the fields the pipeline uses are kept; the JSON it was read from is
+ * streamed and not retained.
+ */
 public class Assembly {
-    private JsonObject assemblyData;
     private Sample sample;
     private String id;
     private final Map<String, String> attributes = new HashMap<>();
     private final Map<String, String> analysisSummary = new HashMap<>();
     private String downloadLink;
+    private String sampleId;
+    private String sampleLink;
 
-    public Assembly(JsonObject assemblyData, String outDir) {
-        this.assemblyData = assemblyData;
-        parse(outDir);
+    private Assembly() {
     }
 
     public Assembly(File file) {
-        parse(file);
-    }
-
-    public void parse(File file) {
-        try {
-            FileReader reader = new FileReader(file);
-            JsonReader jsonReader = Json.createReader(reader);
-            this.assemblyData = jsonReader.readObject();
-
-            final String id = assemblyData.getString("id");
-            this.id = id;
-
-            parseAttributes();
-
-            JsonObject relationships = assemblyData.getJsonObject("relationships");
-            JsonObject sample = relationships.getJsonObject("sample");
-            JsonObject sampleData = sample.getJsonObject("data");
-            final String samplesId = sampleData.getString("id");
-            JsonObject sampleLinks = sample.getJsonObject("links");
-            final String sampleLinksRelated = sampleLinks.getString("related");
-            JsonObject downloads = relationships.getJsonObject("downloads");
-            JsonObject downloadsLinks = downloads.getJsonObject("links");
-            final String downloadsLinksRelated = downloadsLinks.getString("related");
-            JsonObject study = relationships.getJsonObject("study");
-            JsonObject studyData = study.getJsonObject("data");
-            final String studyID = studyData.getString("id");
-            JsonObject studyLinks = study.getJsonObject("links");
-            final String studyLinksRelated = studyLinks.getString("related");
-            JsonObject assembly = relationships.getJsonObject("assembly");
-            JsonObject assemblyData1 = assembly.getJsonObject("data");
-            final String assemblyId = assemblyData1.getString("id");
-            JsonObject assemblyLinks = assembly.getJsonObject("links");
-            final String assemblyLinksRelated = assemblyLinks.getString("related");
-            JsonObject taxonomy = relationships.getJsonObject("taxonomy");
-            JsonObject taxonomyLinks = taxonomy.getJsonObject("links");
-            final String taxonomyLinksRelated = taxonomyLinks.getString("related");
-            JsonObject antismashGC = relationships.getJsonObject("antismash-gene-clusters");
-            JsonObject antismashGCLinks = antismashGC.getJsonObject("links");
-            final String antismashGCLinksRelated = antismashGCLinks.getString("related");
-
-            this.downloadLink = downloadsLinksRelated;
-
-
-            Sample sampleModel = new Sample(samplesId, sampleLinksRelated, new File(file.getParentFile().getParentFile().getAbsolutePath()
-                    + File.separator + "samples" + File.separator + samplesId + ".json"));
-            this.sample = sampleModel;
-
+        try (JsonParser parser = Json.createParser(new FileInputStream(file))) {
+            parseAttributes(readFields(parser, parser.next(), null));
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
+        this.sample = new Sample(sampleId, sampleLink, new File(file.getParentFile().getParentFile().getAbsolutePath()
+                + File.separator + "samples" + File.separator + sampleId + ".json"));
+    }
+
+    /**
+     * Reads the analysis object that starts with {@code event}, copying it to {@code mirror} if one is given.
+     * Returns null if the analysis is not of an assembly. The sample is resolved separately, see
+     * {@link SampleResolver}.
+     */
+    static Assembly read(JsonParser parser, JsonParser.Event event, JsonGenerator mirror) {
+        Assembly assembly = new Assembly();
+        JsonObject attributes = assembly.readFields(parser, event, mirror);
+        if (!"assembly".equals(attributes.getString("experiment-type", null))) {
+            return null;
+        }
+        assembly.parseAttributes(attributes);
+        return assembly;
+    }
 
+    private JsonObject readFields(JsonParser parser, JsonParser.Event event, JsonGenerator mirror) {
+        JsonObjectBuilder attributesData = Json.createObjectBuilder();
+        JsonArrayBuilder summary = Json.createArrayBuilder();
+        JsonObjectBuilder summaryEntry = Json.createObjectBuilder();
+        JsonStreams.walk(parser, event, new JsonStreams.Handler() {
+            @Override
+            public void value(String path, JsonValue value) {
+                switch (path) {
+                    case "id":
+                        id = ((JsonString) value).getString();
+                        break;
+                    case "relationships/sample/data/id":
+                        sampleId = ((JsonString) value).getString();
+                        break;
+                    case "relationships/sample/links/related":
+                        sampleLink = ((JsonString) value).getString();
+                        break;
+                    case "relationships/downloads/links/related":
+                        downloadLink = ((JsonString) value).getString();
+                        break;
+                    default:
+                        if (path.startsWith("attributes/analysis-summary/#/")) {
+                            summaryEntry.add(path.substring("attributes/analysis-summary/#/".length()), value);
+                        } else if (path.startsWith("attributes/") && path.indexOf('/', "attributes/".length()) < 0) {
+                            attributesData.add(path.substring("attributes/".length()), value);
+                        }
+                }
+            }
+
+            @Override
+            public void end(String path) {
+                if (path.equals("attributes/analysis-summary/#")) {
+                    summary.add(summaryEntry);
+                } else if (path.equals("attributes/analysis-summary")) {
+                    attributesData.add("analysis-summary", summary);
+                }
+            }
+        }, mirror);
+        return attributesData.build();
     }
 
-    public void parse(String outDir) {
-        this.assemblyData = assemblyData;
-
-        final String id = assemblyData.getString("id");
-        this.id = id;
-
-        JsonUtil.writeJSON2File(this.assemblyData, outDir + File.separatorChar + "assemblies" + File.separatorChar + id + ".json");
-
-        System.out.println(id);
-        parseAttributes();
-
-        JsonObject relationships = assemblyData.getJsonObject("relationships");
-        JsonObject sample = relationships.getJsonObject("sample");
-        JsonObject sampleData = sample.getJsonObject("data");
-        final String samplesId = sampleData.getString("id");
-        JsonObject sampleLinks = sample.getJsonObject("links");
-        final String sampleLinksRelated = sampleLinks.getString("related");
-        JsonObject downloads = relationships.getJsonObject("downloads");
-        JsonObject downloadsLinks = downloads.getJsonObject("links");
-        final String downloadsLinksRelated = downloadsLinks.getString("related");
-        JsonObject study = relationships.getJsonObject("study");
-        JsonObject studyData = study.getJsonObject("data");
-        final String studyID = studyData.getString("id");
-        JsonObject studyLinks = study.getJsonObject("links");
-        final String studyLinksRelated = studyLinks.getString("related");
-        JsonObject assembly = relationships.getJsonObject("assembly");
-        JsonObject assemblyData1 = assembly.getJsonObject("data");
-        final String assemblyId = assemblyData1.getString("id");
-        JsonObject assemblyLinks = assembly.getJsonObject("links");
-        final String assemblyLinksRelated = assemblyLinks.getString("related");
-        JsonObject taxonomy = relationships.getJsonObject("taxonomy");
-        JsonObject taxonomyLinks = taxonomy.getJsonObject("links");
-        final String taxonomyLinksRelated = taxonomyLinks.getString("related");
-        JsonObject antismashGC = relationships.getJsonObject("antismash-gene-clusters");
-        JsonObject antismashGCLinks = antismashGC.getJsonObject("links");
-        final String antismashGCLinksRelated = antismashGCLinks.getString("related");
-
-        this.downloadLink = downloadsLinksRelated;
-
-        Sample sampleModel = new Sample(samplesId, sampleLinksRelated, outDir);
-        this.sample = sampleModel;
+    void setSample(Sample sample) {
+        this.sample = sample;
     }
 
-    private void parseAttributes() {
-        JsonObject attributes = assemblyData.getJsonObject("attributes");
+    String getSampleId() {
+        return sampleId;
+    }
+
+    String getSampleLink() {
+        return sampleLink;
+    }
+
+    private void parseAttributes(JsonObject attributes) {
         final String pipelineVersion = JsonUtil.getStringOrDefault(attributes, "pipeline-version");
         final String experimentType = JsonUtil.getStringOrDefault(attributes, "experiment-type");
 //        final JsonArray analysisSummary = attributes.getJsonArray("analysis-summary");
@@ -179,10 +165,6 @@ public class Assembly {
         return downloadLink;
     }
 
-    public JsonObject getAssemblyData() {
-        return assemblyData;
-    }
-
     public Map<String, String> getAttributes() {
         return attributes;
     }
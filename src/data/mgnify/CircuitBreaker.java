@@ -0,0 +1,103 @@
+package data.mgnify;
+
+/**
+ * Stops all requests after {@code threshold} consecutive failures. While open, callers of {@link #acquire()} wait
+ * instead of failing, so a long crawl pauses through an outage rather than dying. After the open period one trial
+ * request is let through: if it succeeds the breaker closes, otherwise it opens again for twice as long, up to
+ * {@code maxOpenMillis}.
+ */
+public class CircuitBreaker {
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int threshold;
+    private final long initialOpenMillis;
+    private final long maxOpenMillis;
+    // guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openMillis;
+    private long openUntil = 0;
+    private boolean trialInFlight = false;
+    private long openings = 0;
+
+    public CircuitBreaker(int threshold, long openMillis, long maxOpenMillis) {
+        this.threshold = threshold;
+        this.initialOpenMillis = openMillis;
+        this.openMillis = openMillis;
+        this.maxOpenMillis = maxOpenMillis;
+    }
+
+    /**
+     * Blocks while the breaker is open, or while another caller's trial request is in flight. Returns true if the
+     * caller's request is the trial; it must then report {@link #onSuccess()}, {@link #onFailure()} or, if the request
+     * is never sent, {@link #cancelTrial()}, or every other caller keeps waiting.
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        while (true) {
+            if (state == State.CLOSED) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (state == State.OPEN && now < openUntil) {
+                wait(openUntil - now);
+            } else if (state == State.OPEN) {
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                System.err.println("Circuit breaker half open, sending a trial request");
+                return true;
+            } else if (trialInFlight) {
+                wait();
+            } else {
+                trialInFlight = true;
+                return true;
+            }
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            System.err.println("Circuit breaker closed");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openMillis = initialOpenMillis;
+        trialInFlight = false;
+        notifyAll();
+    }
+
+    /**
+     * Gives up the trial request without an outcome, e.g. because its caller was interrupted before sending it. The
+     * breaker stays half open and the next caller makes the trial.
+     */
+    public synchronized void cancelTrial() {
+        if (state == State.HALF_OPEN && trialInFlight) {
+            trialInFlight = false;
+            notifyAll();
+        }
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openMillis = Math.min(maxOpenMillis, openMillis * 2);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= threshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+        trialInFlight = false;
+        openings++;
+        System.err.println("Circuit breaker open for " + openMillis / 1000 + " s after " + consecutiveFailures +
+                " consecutive failures");
+        notifyAll();
+    }
+
+    public synchronized long getOpenings() {
+        return openings;
+    }
+}
@@ -0,0 +1,361 @@
+package data.mgnify;
+
+import configutil.Settings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads large files into {@code <target>.part}, which is renamed to the target once its size (and checksum, if
+ * one is given) has been verified. A download that fails is resumed from the end of the part file with a Range
+ * request, both on retry and when the same file is requested again in a later run. If-Range makes the server send
+ * the whole file again if it changed during the run; a later run compares the ETag or Last-Modified recorded in
+ * {@code <target>.part.validator} and starts over if the file changed in between.
+ * <p>
+ * Files of at least MGNIFY_SEGMENT_MIN_MB are fetched as MGNIFY_DOWNLOAD_SEGMENTS parallel ranges when the server
+ * supports them, into {@code <target>.segments}. Downloads use HTTP/1.1 so that the segments travel over separate
+ * connections. A segmented download is resumed segment by segment within the run; a file it leaves behind is
+ * discarded by the next run.
+ */
+public class FileDownloader {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static volatile FileDownloader instance;
+
+    private final HttpClient client;
+    private final ExecutorService segmentWorkers;
+    private final int segments;
+    private final long segmentMinBytes;
+    private final int maxRetries;
+    private final long retryBaseMillis;
+    private final long retryMaxMillis;
+
+    private FileDownloader() {
+        this.segments = Math.max(1, Settings.getInt("MGNIFY_DOWNLOAD_SEGMENTS", "mgnify.download.segments", 4));
+        this.segmentMinBytes = Settings.getInt("MGNIFY_SEGMENT_MIN_MB", "mgnify.segment.min.mb", 256) * 1_000_000L;
+        this.maxRetries = Settings.getInt("MGNIFY_DOWNLOAD_RETRIES", "mgnify.download.retries", 5);
+        this.retryBaseMillis = Settings.getInt("MGNIFY_RETRY_BASE_MS", "mgnify.retry.base.ms", 1000);
+        this.retryMaxMillis = Settings.getInt("MGNIFY_RETRY_MAX_MS", "mgnify.retry.max.ms", 60000);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.segmentWorkers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "mgnify-download-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(Settings.getInt("MGNIFY_CONNECT_TIMEOUT_S", "mgnify.connect.timeout.s", 30)))
+                .build();
+    }
+
+    public static FileDownloader get() {
+        FileDownloader downloader = instance;
+        if (downloader == null) {
+            synchronized (FileDownloader.class) {
+                downloader = instance;
+                if (downloader == null) {
+                    downloader = new FileDownloader();
+                    instance = downloader;
+                }
+            }
+        }
+        return downloader;
+    }
+
+    public void download(String url, Path target) throws IOException {
+        download(url, target, null, null);
+    }
+
+    /**
+     * Downloads {@code url} to {@code target}. If {@code algorithm} is given (e.g. "MD5" or "SHA-256") the file must
+     * hash to {@code expectedHex}, otherwise it is deleted and an IOException is thrown. A target that already has
+     * the size announced by the server is kept as it is.
+     */
+    public void download(String url, Path target, String algorithm, String expectedHex) throws IOException {
+        Remote remote = probe(url);
+        if (remote.length >= 0 && Files.exists(target) && Files.size(target) == remote.length && algorithm == null) {
+            System.out.println("Already downloaded: " + target);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean segmented = remote.ranges && remote.length >= segmentMinBytes && segments > 1;
+        // segments leave holes, so their file must never be resumed sequentially
+        Path part = target.resolveSibling(target.getFileName() + (segmented ? ".segments" : ".part"));
+        if (segmented) {
+            downloadSegments(url, part, remote);
+        } else {
+            downloadSequential(url, part, remote);
+        }
+        long size = Files.size(part);
+        if (remote.length >= 0 && size != remote.length) {
+            delete(part);
+            throw new IOException("Downloaded " + size + " of " + remote.length + " bytes of " + url);
+        }
+        if (algorithm != null) {
+            String actual = checksum(part, algorithm);
+            if (!actual.equalsIgnoreCase(expectedHex)) {
+                delete(part);
+                throw new IOException(algorithm + " of " + url + " is " + actual + ", expected " + expectedHex);
+            }
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(validatorFile(part));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Downloaded %s: %.1f MB in %.1f s", target.getFileName(), size / 1e6, seconds));
+    }
+
+    /**
+     * Reads length, range support and validators with a HEAD request. Servers that refuse HEAD are treated as
+     * announcing nothing.
+     */
+    private Remote probe(String url) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() == 200) {
+                return new Remote(response.headers());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while probing " + url, e);
+        } catch (IOException ignored) {
+            // the GET will fail or succeed on its own
+        }
+        return new Remote(HttpHeaders.of(Map.of(), (name, value) -> true));
+    }
+
+    private void downloadSequential(String url, Path part, Remote remote) throws IOException {
+        Path validatorFile = validatorFile(part);
+        String validator = remote.validator().orElse("");
+        if (Files.exists(part) && !(Files.exists(validatorFile) &&
+                new String(Files.readAllBytes(validatorFile), StandardCharsets.UTF_8).equals(validator))) {
+            // written from another version of the file, so its bytes cannot be continued
+            Files.delete(part);
+        }
+        Files.write(validatorFile, validator.getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int attempt = 0; ; attempt++) {
+                long offset = channel.size();
+                if (remote.length >= 0 && offset == remote.length) {
+                    return;
+                }
+                if (offset > 0) {
+                    System.out.println("Resuming " + url + " at " + offset + " bytes");
+                }
+                try {
+                    fetchRange(url, channel, offset, -1, remote);
+                    return;
+                } catch (IOException e) {
+                    retryOrThrow(url, attempt, e);
+                }
+            }
+        }
+    }
+
+    private void downloadSegments(String url, Path part, Remote remote) throws IOException {
+        Files.deleteIfExists(part);
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long segmentSize = (remote.length + segments - 1) / segments;
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            for (long from = 0; from < remote.length; from += segmentSize) {
+                long segmentStart = from;
+                long segmentEnd = Math.min(remote.length, from + segmentSize) - 1;
+                pending.add(CompletableFuture.runAsync(() -> downloadSegment(url, channel, segmentStart, segmentEnd, remote),
+                        segmentWorkers));
+            }
+            try {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void downloadSegment(String url, FileChannel channel, long from, long to, Remote remote) {
+        long position = from;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                fetchRange(url, channel, position, to, remote);
+                return;
+            } catch (PartialTransfer e) {
+                position = e.position;
+                retryOrThrowUnchecked(url, attempt, e);
+            } catch (IOException e) {
+                retryOrThrowUnchecked(url, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Writes bytes {@code from} to {@code to} (inclusive, or to the end if negative) of {@code url} at the same
+     * position of {@code channel}. Returns the position after the last byte written. A failure after some bytes
+     * were written is thrown as {@link PartialTransfer}, so the caller can resume from there.
+     */
+    private long fetchRange(String url, FileChannel channel, long from, long to, Remote remote) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url)).GET();
+        boolean ranged = from > 0 || to >= 0;
+        if (ranged) {
+            builder.header("Range", "bytes=" + from + "-" + (to >= 0 ? to : ""));
+            remote.validator().ifPresent(validator -> builder.header("If-Range", validator));
+        }
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + url, e);
+        }
+        long position = from;
+        try (InputStream body = response.body()) {
+            int status = response.statusCode();
+            if (status == 200 && ranged) {
+                if (to >= 0) {
+                    throw new IOException("Range request for a segment of " + url + " was answered with the whole file");
+                }
+                // no range support, or the file changed since the part was written
+                channel.truncate(0);
+                position = 0;
+            } else if (status == 416 && to < 0) {
+                return position;
+            } else if (status != 200 && status != 206) {
+                throw new IOException("HTTP " + status + " for " + url);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            int read;
+            while ((read = body.read(buffer)) >= 0) {
+                wrapped.clear().limit(read);
+                while (wrapped.hasRemaining()) {
+                    position += channel.write(wrapped, position);
+                }
+            }
+            return position;
+        } catch (IOException e) {
+            if (position > from) {
+                throw new PartialTransfer(position, e);
+            }
+            throw e;
+        }
+    }
+
+    private void retryOrThrow(String url, int attempt, IOException e) throws IOException {
+        if (attempt >= maxRetries) {
+            throw e;
+        }
+        long ceiling = Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+        System.err.println("Retrying " + url + " in " + delay + " ms after " + e);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + url, ie);
+        }
+    }
+
+    private void retryOrThrowUnchecked(String url, int attempt, IOException e) {
+        try {
+            retryOrThrow(url, attempt, e);
+        } catch (IOException ioe) {
+            throw new CompletionException(ioe);
+        }
+    }
+
+    private static Path validatorFile(Path part) {
+        return part.resolveSibling(part.getFileName() + ".validator");
+    }
+
+    private static void delete(Path part) throws IOException {
+        Files.deleteIfExists(part);
+        Files.deleteIfExists(validatorFile(part));
+    }
+
+    private static String checksum(Path file, String algorithm) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static class Remote {
+        final long length;
+        final boolean ranges;
+        final String etag;
+        final String lastModified;
+
+        Remote(HttpHeaders headers) {
+            this.length = headers.firstValueAsLong("Content-Length").orElse(-1);
+            this.ranges = headers.firstValue("Accept-Ranges").map(value -> value.contains("bytes")).orElse(false);
+            this.etag = headers.firstValue("ETag").orElse(null);
+            this.lastModified = headers.firstValue("Last-Modified").orElse(null);
+        }
+
+        /**
+         * Returns the validator for If-Range; weak ETags are not allowed there.
+         */
+        Optional<String> validator() {
+            if (etag != null && !etag.startsWith("W/")) {
+                return Optional.of(etag);
+            }
+            return Optional.ofNullable(lastModified);
+        }
+    }
+
+    private static class PartialTransfer extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long position;
+
+        PartialTransfer(long position, IOException cause) {
+            super("Transfer interrupted at byte " + position, cause);
+            this.position = position;
+        }
+    }
+}
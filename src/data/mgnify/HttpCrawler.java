@@ -0,0 +1,315 @@
+package data.mgnify;
+
+import configutil.Settings;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Shared HTTP client for the MGnify API. All requests go through one {@link HttpClient}, so connections are reused
+ * and multiplexed over HTTP/2 where the server supports it. At most MGNIFY_CONCURRENCY requests are in flight at a
+ * time, whether they are sent from {@link #getJson(String)} or from the worker threads behind {@link #fetchJson}
+ * and {@link #submit}.
+ * <p>
+ * Setting MGNIFY_CACHE_DIR keeps responses in a {@link ResponseCache}; with MGNIFY_OFFLINE only cached responses
+ * are served and nothing is sent.
+ * <p>
+ * Requests are paced by an {@link AdaptiveRateLimiter}, retried on transient errors and paused by a
+ * {@link CircuitBreaker} while the API is down.
+ */
+public class HttpCrawler {
+
+    private static volatile HttpCrawler instance;
+
+    private final HttpClient client;
+    private final Semaphore permits;
+    private final ExecutorService workers;
+    private final Duration requestTimeout;
+    private final ResponseCache cache;
+    private final boolean offline;
+    private final long maxAgeMillis;
+    private final AdaptiveRateLimiter limiter;
+    private final CircuitBreaker breaker;
+    private final int maxRetries;
+    private final long retryBaseMillis;
+    private final long retryMaxMillis;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    private HttpCrawler() {
+        int concurrency = Settings.getInt("MGNIFY_CONCURRENCY", "mgnify.concurrency", 8);
+        int workerThreads = Settings.getInt("MGNIFY_WORKERS", "mgnify.workers", 2 * concurrency);
+        this.permits = new Semaphore(concurrency, true);
+        this.requestTimeout = Duration.ofSeconds(Settings.getInt("MGNIFY_REQUEST_TIMEOUT_S", "mgnify.request.timeout.s", 300));
+        this.cache = openCache();
+        this.offline = Boolean.parseBoolean(Settings.get("MGNIFY_OFFLINE", "mgnify.offline", "false"));
+        this.maxAgeMillis = Settings.getInt("MGNIFY_CACHE_MAX_AGE_S", "mgnify.cache.max.age.s", 0) * 1000L;
+        this.limiter = new AdaptiveRateLimiter(
+                Double.parseDouble(Settings.get("MGNIFY_MIN_RATE", "mgnify.min.rate", "0.5")),
+                Double.parseDouble(Settings.get("MGNIFY_RATE", "mgnify.rate", "10")));
+        int breakerOpenSeconds = Settings.getInt("MGNIFY_BREAKER_OPEN_S", "mgnify.breaker.open.s", 30);
+        this.breaker = new CircuitBreaker(Settings.getInt("MGNIFY_BREAKER_THRESHOLD", "mgnify.breaker.threshold", 10),
+                breakerOpenSeconds * 1000L, breakerOpenSeconds * 16000L);
+        this.maxRetries = Settings.getInt("MGNIFY_RETRIES", "mgnify.retries", 5);
+        this.retryBaseMillis = Settings.getInt("MGNIFY_RETRY_BASE_MS", "mgnify.retry.base.ms", 1000);
+        this.retryMaxMillis = Settings.getInt("MGNIFY_RETRY_MAX_MS", "mgnify.retry.max.ms", 60000);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = new Thread(r, "mgnify-crawler-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(Settings.getInt("MGNIFY_CONNECT_TIMEOUT_S", "mgnify.connect.timeout.s", 30)))
+                .build();
+    }
+
+    /**
+     * Returns the crawler shared by this process, created on first use from the MGNIFY_* settings.
+     */
+    public static HttpCrawler get() {
+        HttpCrawler crawler = instance;
+        if (crawler == null) {
+            synchronized (HttpCrawler.class) {
+                crawler = instance;
+                if (crawler == null) {
+                    crawler = new HttpCrawler();
+                    instance = crawler;
+                }
+            }
+        }
+        return crawler;
+    }
+
+    private static ResponseCache openCache() {
+        String dir = Settings.get("MGNIFY_CACHE_DIR", "mgnify.cache.dir", "");
+        if (dir.isEmpty()) {
+            return null;
+        }
+        try {
+            long maxBytes = Settings.getInt("MGNIFY_CACHE_MAX_MB", "mgnify.cache.max.mb", 4096) * 1_000_000L;
+            ResponseCache responseCache = new ResponseCache(Paths.get(dir), maxBytes);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(responseCache.getStats())));
+            return responseCache;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Fetches {@code url} and parses the response as a JSON object, blocking until a request slot is free. With a
+     * response cache, a cached response is revalidated with a conditional request, or returned as is while it is
+     * younger than MGNIFY_CACHE_MAX_AGE_S or when the crawler is offline.
+     */
+    public JsonObject getJson(String url) throws IOException {
+        return parse(getBody(url));
+    }
+
+    /**
+     * Fetches {@code url} like {@link #getJson(String)} but returns the raw response body, for callers that stream
+     * or archive it.
+     */
+    public byte[] getBody(String url) throws IOException {
+        ResponseCache.Entry cached = cache == null ? null : cache.lookup(url);
+        if (cached != null && (offline || System.currentTimeMillis() - cached.getStoredAt() < maxAgeMillis)) {
+            byte[] body = readCached(cached);
+            if (body != null) {
+                cache.hit(cached, false);
+                return body;
+            }
+            cached = null;
+        }
+        if (offline) {
+            throw new IOException("Not in the response cache and MGNIFY_OFFLINE is set: " + url);
+        }
+        HttpResponse<byte[]> response = send(url, cached);
+        if (response.statusCode() == 304 && cached != null) {
+            byte[] body = readCached(cached);
+            if (body != null) {
+                cache.hit(cached, true);
+                return body;
+            }
+            // evicted while revalidating
+            response = send(url, null);
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("HTTP " + response.statusCode() + " for " + url);
+        }
+        if (cache != null) {
+            cache.store(url, response.body(), response.headers().firstValue("ETag").orElse(null),
+                    response.headers().firstValue("Last-Modified").orElse(null));
+        }
+        return response.body();
+    }
+
+    /**
+     * Sends a GET for {@code url}, conditional if {@code cached} is given. Timeouts, connection errors, 429 and 5xx
+     * responses are retried up to MGNIFY_RETRIES times with jittered exponential backoff; the last response or
+     * error is passed on.
+     */
+    private HttpResponse<byte[]> send(String url, ResponseCache.Entry cached) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .timeout(requestTimeout)
+                .header("Accept", "application/json")
+                .GET();
+        if (cached != null && cached.getEtag() != null) {
+            builder.header("If-None-Match", cached.getEtag());
+        }
+        if (cached != null && cached.getLastModified() != null) {
+            builder.header("If-Modified-Since", cached.getLastModified());
+        }
+        HttpRequest request = builder.build();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                boolean trial = breaker.acquire();
+                boolean reported = false;
+                HttpResponse<byte[]> response = null;
+                IOException error = null;
+                try {
+                    limiter.acquire();
+                    permits.acquire();
+                    requests.increment();
+                    long start = System.nanoTime();
+                    try {
+                        response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                    } catch (IOException e) {
+                        error = e;
+                    } finally {
+                        permits.release();
+                    }
+                    if (response != null) {
+                        limiter.onResponse(response.statusCode(), response.headers(), System.nanoTime() - start);
+                        if (!isRetryable(response.statusCode())) {
+                            reported = true;
+                            breaker.onSuccess();
+                            return response;
+                        }
+                    } else {
+                        limiter.onFailure();
+                    }
+                    failures.increment();
+                    reported = true;
+                    breaker.onFailure();
+                } finally {
+                    if (trial && !reported) {
+                        // interrupted or failed before the trial had an outcome; another caller makes it instead
+                        breaker.cancelTrial();
+                    }
+                }
+                if (attempt >= maxRetries) {
+                    if (response != null) {
+                        return response;
+                    }
+                    throw error;
+                }
+                retries.increment();
+                long delay = backoffMillis(attempt);
+                System.err.println("Retrying " + url + " in " + delay + " ms after " +
+                        (response != null ? "HTTP " + response.statusCode() : error.toString()));
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + url, e);
+        }
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status >= 500;
+    }
+
+    private long backoffMillis(int attempt) {
+        long ceiling = Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    /**
+     * Returns the cached body, or null if it cannot be read, e.g. because another thread evicted the entry after it
+     * was looked up. Callers then fetch the URL as on a cache miss.
+     */
+    private byte[] readCached(ResponseCache.Entry entry) {
+        try {
+            return cache.read(entry);
+        } catch (IOException e) {
+            System.err.println("Cannot read cached response for " + entry.getUrl() + ": " + e);
+            return null;
+        }
+    }
+
+    private static JsonObject parse(byte[] body) {
+        try (JsonReader reader = Json.createReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))) {
+            return reader.readObject();
+        }
+    }
+
+    /**
+     * Fetches {@code url} on a worker thread. The future fails with the {@link IOException} of the request.
+     */
+    public CompletableFuture<JsonObject> fetchJson(String url) {
+        return submit(() -> {
+            try {
+                return getJson(url);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public CompletableFuture<byte[]> fetchBody(String url) {
+        return submit(() -> {
+            try {
+                return getBody(url);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} on a worker thread. Tasks may fetch with {@link #getJson(String)} but must not wait for
+     * other submitted tasks, or the workers can run out.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, workers);
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public double getRate() {
+        return limiter.getRate();
+    }
+}
@@ -0,0 +1,283 @@
+package data.mgnify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * On-disk cache of API responses. Bodies are stored once under {@code objects/} by their SHA-256, so pages that did
+ * not change between crawls, or that are reachable under several URLs, take no extra space. Each URL has an entry
+ * under {@code index/} with the body hash and the ETag and Last-Modified validators of the response, which
+ * {@link HttpCrawler} sends back as a conditional request.
+ * <p>
+ * Once the bodies exceed {@code maxBytes} the least recently used entries are dropped. Use is tracked by the
+ * modification time of the index files, so the order survives restarts.
+ */
+public class ResponseCache {
+
+    private final Path index;
+    private final Path objects;
+    private final long maxBytes;
+    // access order; guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> references = new HashMap<>();
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long revalidated = 0;
+    private long stored = 0;
+    private long evicted = 0;
+
+    public ResponseCache(Path dir, long maxBytes) throws IOException {
+        this.index = Files.createDirectories(dir.resolve("index"));
+        this.objects = Files.createDirectories(dir.resolve("objects"));
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(index, "*.properties")) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparing(ResponseCache::lastModified));
+        for (Path file : files) {
+            Entry entry;
+            try (InputStream in = Files.newInputStream(file)) {
+                Properties properties = new Properties();
+                properties.load(in);
+                entry = new Entry(properties);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            if (entry.url == null || entry.hash == null || !Files.exists(objects.resolve(entry.hash))) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            entries.put(entry.url, entry);
+            reference(entry);
+        }
+        deleteUnreferencedObjects();
+        System.err.println(String.format("Response cache: %d entries, %.1f MB", entries.size(), totalBytes / 1e6));
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Returns the entry for {@code url} and marks it as used, or null if the URL is not cached.
+     */
+    public synchronized Entry lookup(String url) {
+        Entry entry = entries.get(url);
+        if (entry != null) {
+            touch(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the body of {@code entry} without holding the cache lock. Returns null if the entry was evicted or
+     * replaced since it was looked up and its body has been deleted, which callers treat as a miss.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        try {
+            return Files.readAllBytes(objects.resolve(entry.hash));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records that {@code entry} was served without downloading it again.
+     */
+    public synchronized void hit(Entry entry, boolean afterRevalidation) {
+        hits++;
+        // an entry evicted or replaced since the lookup keeps its index file deleted
+        if (afterRevalidation && entries.get(entry.url) == entry) {
+            revalidated++;
+            entry.storedAt = System.currentTimeMillis();
+            writeIndex(entry);
+        }
+    }
+
+    /**
+     * Stores {@code body} as the current response for {@code url}.
+     */
+    public synchronized void store(String url, byte[] body, String etag, String lastModified) throws IOException {
+        String hash = sha256(body);
+        Path object = objects.resolve(hash);
+        if (!Files.exists(object)) {
+            Path tmp = Files.createTempFile(objects, hash, ".tmp");
+            Files.write(tmp, body);
+            Files.move(tmp, object, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Entry entry = new Entry(url, hash, body.length, etag, lastModified, System.currentTimeMillis());
+        // referenced before the previous body is released, which may be the same object
+        reference(entry);
+        Entry previous = entries.remove(url);
+        if (previous != null) {
+            release(previous);
+        }
+        entries.put(url, entry);
+        writeIndex(entry);
+        stored++;
+        evict();
+    }
+
+    private void evict() throws IOException {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            Files.deleteIfExists(indexFile(eldest.url));
+            release(eldest);
+            evicted++;
+        }
+    }
+
+    private void reference(Entry entry) {
+        if (references.merge(entry.hash, 1, Integer::sum) == 1) {
+            totalBytes += entry.size;
+        }
+    }
+
+    private void release(Entry entry) throws IOException {
+        if (references.merge(entry.hash, -1, Integer::sum) == 0) {
+            references.remove(entry.hash);
+            totalBytes -= entry.size;
+            Files.deleteIfExists(objects.resolve(entry.hash));
+        }
+    }
+
+    private void deleteUnreferencedObjects() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objects)) {
+            for (Path object : stream) {
+                if (!references.containsKey(object.getFileName().toString())) {
+                    Files.deleteIfExists(object);
+                }
+            }
+        }
+    }
+
+    private void touch(Entry entry) {
+        try {
+            Files.setLastModifiedTime(indexFile(entry.url), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {}
+    }
+
+    private void writeIndex(Entry entry) {
+        Path file = indexFile(entry.url);
+        try {
+            Path tmp = Files.createTempFile(index, file.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                entry.toProperties().store(out, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Path indexFile(String url) {
+        return index.resolve(sha256(url.getBytes(StandardCharsets.UTF_8)) + ".properties");
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized String getStats() {
+        return String.format("Response cache: %d hits (%d revalidated), %d stored, %d evicted, %d entries, %.1f MB",
+                hits, revalidated, stored, evicted, entries.size(), totalBytes / 1e6);
+    }
+
+    public static class Entry {
+        final String url;
+        final String hash;
+        final long size;
+        final String etag;
+        final String lastModified;
+        volatile long storedAt;
+
+        Entry(String url, String hash, long size, String etag, String lastModified, long storedAt) {
+            this.url = url;
+            this.hash = hash;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+        }
+
+        Entry(Properties properties) {
+            this(properties.getProperty("url"), properties.getProperty("hash"),
+                    Long.parseLong(properties.getProperty("size", "0")), properties.getProperty("etag"),
+                    properties.getProperty("lastModified"), Long.parseLong(properties.getProperty("storedAt", "0")));
+        }
+
+        Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("url", url);
+            properties.setProperty("hash", hash);
+            properties.setProperty("size", String.valueOf(size));
+            if (etag != null) {
+                properties.setProperty("etag", etag);
+            }
+            if (lastModified != null) {
+                properties.setProperty("lastModified", lastModified);
+            }
+            properties.setProperty("storedAt", String.valueOf(storedAt));
+            return properties;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public long getStoredAt() {
+            return storedAt;
+        }
+    }
+}
@@ -1,26 +1,54 @@
 package data.mgnify;
 
+import jsonutil.JsonStreams;
 import jsonutil.JsonUtil;
 
 import javax.json.*;
+import javax.json.stream.JsonParser;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * An MGnify sample with its attributes and metadata. The sample JSON is streamed and not retained.
+ */
 public class Sample {
 
     private final String link;
     private final String id;
-    private JsonObject sampleData;
     private final Map<String, String> attributes = new HashMap<>();
     private final Map<String, String> metadata = new HashMap<>();
 
     public Sample(String id, String link, String outDir) {
+        this(id, link, fetch(link), outDir);
+    }
+
+    /**
+     * Archives {@code sampleData} under {@code outDir} and reads the sample from it. Without data the sample stays
+     * empty.
+     */
+    Sample(String id, String link, byte[] sampleData, String outDir) {
         this.id = id;
         this.link = link;
-        parse(outDir);
+        if (sampleData == null) {
+            System.err.println("sample data is null for " + id);
+            return;
+        }
+
+        try {
+            Files.write(Paths.get(outDir, "samples", id + ".json"), sampleData);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+
+        parse(new ByteArrayInputStream(sampleData));
     }
 
     public Sample(String id, String link, File file) {
@@ -30,65 +58,57 @@ public class Sample {
     }
 
     private void parse(File file) {
-        FileReader reader = null;
-        try {
-//            if(!file.exists()) {
-//                parse(file.getParentFile().getAbsolutePath());
-//                return;
-//            }
-
-            reader = new FileReader(file);
-
-            JsonReader jsonReader = Json.createReader(reader);
-            this.sampleData = jsonReader.readObject();
-
-            JsonObject data = sampleData.getJsonObject("data");
-            JsonObject attributesData = data.getJsonObject("attributes");
-
-            parseAttributes(attributesData);
-
-            JsonArray sampleMetadata = attributesData.getJsonArray("sample-metadata");
-            parseMetadata(sampleMetadata);
+        try (InputStream in = new FileInputStream(file)) {
+            parse(in);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    private void parse(String outDir) {
-        JsonObject sampleData = APICrawler.getJsonObjectFromURL(link);
-        if(sampleData == null) {
-            System.err.println("sample data is null for " + id);
-            return;
+    private static byte[] fetch(String link) {
+        try {
+            return HttpCrawler.get().getBody(link);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
-        this.sampleData = sampleData;
-
-        JsonUtil.writeJSON2File(sampleData, outDir + File.separatorChar + "samples" + File.separatorChar + id + ".json");
-
-        JsonObject data = sampleData.getJsonObject("data");
-        JsonObject attributesData = data.getJsonObject("attributes");
-
-        parseAttributes(attributesData);
-
-        JsonArray sampleMetadata = attributesData.getJsonArray("sample-metadata");
-        parseMetadata(sampleMetadata);
-
     }
 
-    private void parseMetadata(JsonArray sampleMetadata) {
-        for (JsonValue sampleMetadatum : sampleMetadata) {
-            try {
-                if(sampleMetadatum.asJsonObject().get("value").getValueType().equals(JsonValue.ValueType.NULL))
-                    continue;
-                metadata.put(sampleMetadatum.asJsonObject().getString("key"), sampleMetadatum.asJsonObject().getString("value"));
-            } catch (Exception e) {
-                System.out.println(sampleMetadatum.asJsonObject().get("value").getValueType());
-                System.out.println(sampleMetadatum.asJsonObject().get("value").getClass());
-                System.out.println(sampleMetadatum.asJsonObject().get("value"));
-                System.out.println(sampleMetadatum.asJsonObject().get("value") == null);
-                System.err.println(this.id + "\t" + sampleMetadatum);
-                e.printStackTrace();
-            }
+    private void parse(InputStream in) {
+        JsonObjectBuilder attributesData = Json.createObjectBuilder();
+        String[] entry = new String[2];
+        try (JsonParser parser = Json.createParser(in)) {
+            JsonStreams.walk(parser, parser.next(), new JsonStreams.Handler() {
+                @Override
+                public void value(String path, JsonValue value) {
+                    if (path.equals("data/attributes/sample-metadata/#/key")) {
+                        entry[0] = ((JsonString) value).getString();
+                    } else if (path.equals("data/attributes/sample-metadata/#/value")) {
+                        if (value.getValueType() == JsonValue.ValueType.STRING) {
+                            entry[1] = ((JsonString) value).getString();
+                        } else if (value.getValueType() != JsonValue.ValueType.NULL) {
+                            System.err.println(id + "\t" + value.getValueType() + " metadata value " + value);
+                        }
+                    } else if (path.startsWith("data/attributes/") && path.indexOf('/', "data/attributes/".length()) < 0) {
+                        attributesData.add(path.substring("data/attributes/".length()), value);
+                    }
+                }
+
+                @Override
+                public void end(String path) {
+                    if (path.equals("data/attributes/sample-metadata/#")) {
+                        if (entry[0] != null && entry[1] != null) {
+                            metadata.put(entry[0], entry[1]);
+                        }
+                        entry[0] = null;
+                        entry[1] = null;
+                    }
+                }
+            }, null);
         }
+        parseAttributes(attributesData.build());
     }
 
     private void parseAttributes(JsonObject attributesData) {
@@ -142,8 +162,4 @@ public class Sample {
     public String getLink() {
         return link;
     }
-
-    public JsonObject getSampleData() {
-        return sampleData;
-    }
 }
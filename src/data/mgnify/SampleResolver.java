@@ -0,0 +1,184 @@
+package data.mgnify;
+
+import configutil.Settings;
+import jsonutil.JsonStreams;
+
+import javax.json.Json;
+import javax.json.JsonString;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves samples by id, fetching each distinct sample once per process. Concurrent requests for a sample share the
+ * fetch in flight, and later requests get the same {@link Sample}. A fetch that fails completes the future
+ * exceptionally and is not remembered, so the next request for the sample tries again.
+ * <p>
+ * With MGNIFY_SAMPLE_BATCH above 1, samples that are not known yet are requested that many at a time from
+ * MGNIFY_SAMPLE_BATCH_URL, a filter URL whose %s is replaced by the comma separated accessions and %d by the batch
+ * size. Samples missing from a batch response are fetched one by one.
+ */
+public class SampleResolver {
+
+    private static final String DEFAULT_BATCH_URL =
+            "https://www.ebi.ac.uk/metagenomics/api/v1/samples?accession=%s&page_size=%d&format=json";
+
+    private static volatile SampleResolver instance;
+
+    private final ConcurrentMap<String, CompletableFuture<Sample>> samples = new ConcurrentHashMap<>();
+    private final int batchSize;
+    private final String batchURL;
+    private final LongAdder fetched = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    private SampleResolver() {
+        this.batchSize = Settings.getInt("MGNIFY_SAMPLE_BATCH", "mgnify.sample.batch", 0);
+        this.batchURL = Settings.get("MGNIFY_SAMPLE_BATCH_URL", "mgnify.sample.batch.url", DEFAULT_BATCH_URL);
+    }
+
+    public static SampleResolver get() {
+        SampleResolver resolver = instance;
+        if (resolver == null) {
+            synchronized (SampleResolver.class) {
+                resolver = instance;
+                if (resolver == null) {
+                    resolver = new SampleResolver();
+                    instance = resolver;
+                }
+            }
+        }
+        return resolver;
+    }
+
+    public CompletableFuture<Sample> resolve(String id, String link, String outDir) {
+        return resolveAll(Map.of(id, link), outDir).get(id);
+    }
+
+    /**
+     * Resolves the samples in {@code links}, a map from sample id to its API link. Samples fetched for this call are
+     * archived under {@code outDir}.
+     */
+    public Map<String, CompletableFuture<Sample>> resolveAll(Map<String, String> links, String outDir) {
+        Map<String, CompletableFuture<Sample>> result = new HashMap<>();
+        Map<String, CompletableFuture<Sample>> owned = new LinkedHashMap<>();
+        links.forEach((id, link) -> {
+            CompletableFuture<Sample> created = new CompletableFuture<>();
+            CompletableFuture<Sample> existing = samples.putIfAbsent(id, created);
+            if (existing == null) {
+                owned.put(id, created);
+                result.put(id, created);
+            } else {
+                shared.increment();
+                result.put(id, existing);
+            }
+        });
+
+        HttpCrawler crawler = HttpCrawler.get();
+        if (batchSize > 1 && owned.size() > 1) {
+            List<String> ids = new ArrayList<>(owned.keySet());
+            for (int i = 0; i < ids.size(); i += batchSize) {
+                List<String> batch = ids.subList(i, Math.min(ids.size(), i + batchSize));
+                crawler.submit(() -> fetchBatch(batch, links, owned, outDir));
+            }
+        } else {
+            owned.forEach((id, future) -> crawler.submit(() -> fetchOne(id, links.get(id), future, outDir)));
+        }
+        return result;
+    }
+
+    private Void fetchOne(String id, String link, CompletableFuture<Sample> future, String outDir) {
+        byte[] sampleData;
+        try {
+            sampleData = HttpCrawler.get().getBody(link);
+            fetched.increment();
+        } catch (IOException | RuntimeException e) {
+            // forgotten before it completes, so whoever sees the failure and asks again starts a new fetch
+            samples.remove(id, future);
+            future.completeExceptionally(e);
+            return null;
+        }
+        complete(future, id, link, sampleData, outDir);
+        return null;
+    }
+
+    private Void fetchBatch(List<String> ids, Map<String, String> links, Map<String, CompletableFuture<Sample>> owned,
+                            String outDir) {
+        Map<String, byte[]> found = new HashMap<>();
+        try {
+            byte[] page = HttpCrawler.get().getBody(String.format(batchURL, String.join(",", ids), ids.size()));
+            fetched.increment();
+            readBatch(page, found);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        for (String id : ids) {
+            byte[] sampleData = found.get(id);
+            if (sampleData != null) {
+                complete(owned.get(id), id, links.get(id), sampleData, outDir);
+            } else {
+                fetchOne(id, links.get(id), owned.get(id), outDir);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Splits a list response into one {"data": ...} document per sample, the form the single sample endpoint returns.
+     */
+    private static void readBatch(byte[] page, Map<String, byte[]> found) {
+        try (JsonParser parser = Json.createParser(new ByteArrayInputStream(page))) {
+            parser.next();
+            while (parser.next() == JsonParser.Event.KEY_NAME) {
+                String key = parser.getString();
+                JsonParser.Event event = parser.next();
+                if (!key.equals("data") || event != JsonParser.Event.START_ARRAY) {
+                    JsonStreams.walk(parser, event, null, null);
+                    continue;
+                }
+                while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                    StringWriter json = new StringWriter();
+                    String[] id = new String[1];
+                    try (JsonGenerator mirror = Json.createGenerator(json)) {
+                        mirror.writeStartObject();
+                        mirror.writeKey("data");
+                        JsonStreams.walk(parser, event, (path, value) -> {
+                            if (path.equals("id")) {
+                                id[0] = ((JsonString) value).getString();
+                            }
+                        }, mirror);
+                        mirror.writeEnd();
+                    }
+                    if (id[0] != null) {
+                        found.put(id[0], json.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+    }
+
+    private void complete(CompletableFuture<Sample> future, String id, String link, byte[] sampleData, String outDir) {
+        try {
+            future.complete(new Sample(id, link, sampleData, outDir));
+        } catch (RuntimeException e) {
+            samples.remove(id, future);
+            future.completeExceptionally(e);
+        }
+    }
+
+    public String getStats() {
+        return String.format("Samples: %d resolved, %d requests, %d shared with an earlier request",
+                samples.size(), fetched.sum(), shared.sum());
+    }
+}
@@ -0,0 +1,160 @@
+package dbutil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind sink: any number of producer threads {@link #put} records into a bounded queue and a single writer
+ * thread drains them in batches into a {@link BatchHandler}. Producers block while the queue is full, so a slow
+ * database throttles parsing instead of exhausting the heap. {@link #close()} stops accepting records and returns
+ * only after every accepted record has been handed to the handler.
+ * <p>
+ * If the handler fails on a batch, each of its records is written again on its own, so only the records that fail
+ * by themselves are lost. Those are kept, up to {@value #MAX_KEPT_FAILURES}, until {@link #takeFailures()} is
+ * called.
+ */
+public class AsyncSink<T> implements AutoCloseable {
+
+    static final int MAX_KEPT_FAILURES = 1000;
+
+    @FunctionalInterface
+    public interface BatchHandler<T> {
+        void write(List<T> batch) throws Exception;
+    }
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final BatchHandler<T> handler;
+    private final int batchSize;
+    private final Thread writer;
+    private final AtomicInteger producing = new AtomicInteger();
+    private final List<T> failures = new ArrayList<>();
+    private volatile boolean closing = false;
+    private volatile long written = 0;
+    private volatile long failed = 0;
+
+    public AsyncSink(String name, int capacity, int batchSize, BatchHandler<T> handler) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.handler = handler;
+        this.writer = new Thread(this::drain, "async-sink-" + name);
+        this.writer.start();
+    }
+
+    /**
+     * Enqueues a record, blocking while the queue is full.
+     */
+    public void put(T record) throws InterruptedException {
+        producing.incrementAndGet();
+        try {
+            if (closing) {
+                throw new IllegalStateException("AsyncSink " + name + " is closed");
+            }
+            queue.put(record);
+        } finally {
+            producing.decrementAndGet();
+        }
+    }
+
+    private void drain() {
+        List<T> batch = new ArrayList<>(batchSize);
+        while (true) {
+            T first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // close() waits for the queue to empty, so keep draining
+                continue;
+            }
+            if (first == null) {
+                if (closing && producing.get() == 0 && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            try {
+                handler.write(batch);
+                written += batch.size();
+            } catch (Exception e) {
+                System.err.println(name + ": write of " + batch.size() + " records failed, retrying them one by one: " +
+                        e.getMessage());
+                retryOneByOne(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void retryOneByOne(List<T> batch) {
+        for (T record : batch) {
+            try {
+                handler.write(Collections.singletonList(record));
+                written++;
+            } catch (Exception e) {
+                fail(record, e);
+            }
+        }
+    }
+
+    private void fail(T record, Exception e) {
+        failed++;
+        synchronized (failures) {
+            if (failures.size() < MAX_KEPT_FAILURES) {
+                failures.add(record);
+            }
+        }
+        System.err.println(name + ": record failed: " + e.getMessage());
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public long getWrittenCount() {
+        return written;
+    }
+
+    public long getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * Returns the records that failed since the last call and forgets them. {@link #getFailedCount()} also counts
+     * failures beyond the {@value #MAX_KEPT_FAILURES} that are kept.
+     */
+    public List<T> takeFailures() {
+        synchronized (failures) {
+            List<T> taken = new ArrayList<>(failures);
+            failures.clear();
+            return taken;
+        }
+    }
+
+    /**
+     * Stops accepting records and waits until the writer thread has drained the queue.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println(name + ": " + written + " records written, " + failed + " failed");
+    }
+}
@@ -0,0 +1,131 @@
+package dbutil;
+
+import data.mgnify.Assembly;
+import pipeline.mgnify.GetBiomeTypes;
+
+import javax.sql.rowset.CachedRowSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Operations the pipeline runs against the atlas database. {@link Database} implements them on PostgreSQL;
+ * {@link EmbeddedDatabase} runs the same SQL on an in-process H2 database so that the parsing and aggregation steps
+ * can be benchmarked without a server. Use {@link Database#open()} to get the implementation selected by DB_MODE.
+ * Run leases, LISTEN/NOTIFY, parallel COPY and the staging merge are only offered by {@link Database}.
+ */
+public interface AtlasDatabase {
+
+    // schema and diagnostics
+
+    void migrate();
+
+    void printIndexReport();
+
+    QueryStats getQueryStats();
+
+    void printQueryStats();
+
+    /**
+     * Commits the rows buffered by the insert methods below and returns those that failed since the last flush.
+     */
+    List<BatchWriter.Failure> flush();
+
+    void closeConnection();
+
+    // assemblies and antiSMASH runs
+
+    KeySet preloadKeys(String table);
+
+    void insertAssemblies(List<Assembly> assemblyList);
+
+    List<String> getAllAssemblyAccessions();
+
+    Stream<String> streamAllAssemblyAccessions();
+
+    String[] getNextInQueueRand();
+
+    String getRunStatus(String assemblyId);
+
+    void updateRunStatus(String assemblyId, String status);
+
+    void updateDetails(String assemblyId, String asVer, String pipeVer, String server, String resPath, String status);
+
+    /**
+     * Buffered like the other insert methods: the row is committed within DB_BATCH_FLUSH_MS, by {@link #flush()},
+     * or before the next method here that reads or updates antismash_runs.
+     */
+    void insertRun(String assemblyId, String ASver, String pipeVer, String server, String path, String status);
+
+    List<String> getNewFinishedRuns();
+
+    List<String> getAllFinishedRuns();
+
+    Stream<String> streamAllFinishedRuns();
+
+    // results
+
+    void insertPC(String assembly, String contig, String region, int number, String category, String product,
+                  String contigEdge, String gbkFile);
+
+    void insertClustering(String bgc, String bgcType, int familyNumber, double clusteringThreshold, String assembly);
+
+    void insertNetworkEdge(String clustername1, String clustername2, double rawDistance, double squaredSimilarity,
+                           double jaccardIndex, double dssIndex, double adjacencyIndex, double rawDSSnonAnchor,
+                           double rawDSSAnchor, int nonAnchorDomains, int anchorDoamins, String combinedGroup,
+                           String sharedGroup, String bgcType, double clusteringThreshold);
+
+    List<String> getGCFFamily(String bgcName);
+
+    String getGCFFamilyName(String bgcName);
+
+    void addBiome(GetBiomeTypes.Biome biome);
+
+    /**
+     * Buffered: the membership and the protocluster update are committed within DB_BATCH_FLUSH_MS or by
+     * {@link #flush()}, which must be called before reading either table back.
+     */
+    void insertGCFMembership(String gcfId, String bgcId, String membershipValue, int threshold);
+
+    void insertRegion(String run, String contigName, int recordId, String products, String contigEdge,
+                      String regionNumber, String location);
+
+    void insertRegion(String run, String recordName, int length, String productCategories, String anchor, int start,
+                      int end, boolean isContigEdge, String type, String products, int regionNum);
+
+    // generic statements
+
+    CachedRowSet executeQuery(String sql);
+
+    <T> T executeQuery(String sql, ResultSetHandler<T> handler);
+
+    <T> T executeQuery(String sql, ResultSetHandler<T> handler, Object... params);
+
+    <T> T cachedQuery(String table, String sql, ResultSetHandler<T> handler, Object... params);
+
+    void invalidateCache(String table);
+
+    void executeUpdate(String sql);
+
+    int executeUpdate(String sql, Object... params);
+
+    <T> Stream<T> stream(String sql, RowMapper<T> mapper, Object... params);
+
+    <T> Stream<T> stream(String sql, int fetchSize, RowMapper<T> mapper, Object... params);
+
+    // bulk loading and export
+
+    RowLoader copyLoader(String table, String... columns) throws SQLException;
+
+    RowLoader protoclusterLoader() throws SQLException;
+
+    RowLoader clusteringLoader() throws SQLException;
+
+    RowLoader networkEdgeLoader() throws SQLException;
+
+    RowLoader regionLoader() throws SQLException;
+
+    RowLoader gcfMembershipLoader() throws SQLException;
+
+    void prepareStagingTable(String table, String columnDefinitions);
+}
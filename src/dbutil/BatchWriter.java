@@ -0,0 +1,237 @@
+package dbutil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches rows for a single parameterised statement. Rows are buffered and written every {@code commitInterval}
+ * rows or {@code flushIntervalMillis} milliseconds, whichever comes first, in one transaction on a connection
+ * borrowed from the pool for that write, sent with executeBatch {@code batchSize} rows at a time. No connection is
+ * held between writes, so any number of writers can share a small pool. Safe to share between threads.
+ * <p>
+ * If a batch or commit fails, the transaction is rolled back and its rows are sent again one row per transaction,
+ * so only the rows that fail on their own are lost. Those are kept, up to {@value #MAX_KEPT_FAILURES}, until
+ * {@link #takeFailures()} is called. Rows become visible to other connections only when they are committed; call
+ * {@link #flushAndCommit()} before reading them back.
+ */
+public class BatchWriter implements AutoCloseable {
+
+    static final int MAX_KEPT_FAILURES = 1000;
+
+    /**
+     * A row that could not be written, with the values it was added with.
+     */
+    public static final class Failure {
+        private final String writer;
+        private final Object[] values;
+        private final SQLException error;
+
+        Failure(String writer, Object[] values, SQLException error) {
+            this.writer = writer;
+            this.values = values;
+            this.error = error;
+        }
+
+        public String getWriter() {
+            return writer;
+        }
+
+        public Object[] getValues() {
+            return values;
+        }
+
+        public SQLException getError() {
+            return error;
+        }
+    }
+
+    private final String name;
+    private final String sql;
+    private final ConnectionPool pool;
+    private final int batchSize;
+    private final int commitInterval;
+    private final ScheduledFuture<?> flusher;
+    private final QueryStats stats;
+    private final Runnable onCommit;
+
+    // rows added since the last write
+    private final List<Object[]> rows = new ArrayList<>();
+    private final List<Failure> failures = new ArrayList<>();
+    private long written = 0;
+    private long failed = 0;
+    private boolean closed = false;
+
+    BatchWriter(String name, String sql, ConnectionPool pool, int batchSize, long flushIntervalMillis,
+                int commitInterval, ScheduledExecutorService scheduler, QueryStats stats, Runnable onCommit) {
+        this.name = name;
+        this.stats = stats;
+        this.onCommit = onCommit;
+        this.sql = sql;
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.commitInterval = Math.max(commitInterval, batchSize);
+        this.flusher = scheduler.scheduleWithFixedDelay(this::flushAndCommit, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a row whose values are bound to the statement parameters in order. String arrays are bound as text[].
+     */
+    public synchronized void add(Object... values) {
+        if (closed) {
+            throw new IllegalStateException("BatchWriter " + name + " is closed");
+        }
+        rows.add(values);
+        if (rows.size() >= commitInterval) {
+            write();
+        }
+    }
+
+    public synchronized void flushAndCommit() {
+        if (closed) {
+            return;
+        }
+        write();
+    }
+
+    private static void bind(Connection connection, PreparedStatement statement, Object[] values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value instanceof String[]) {
+                statement.setArray(i + 1, connection.createArrayOf("text", (String[]) value));
+            } else {
+                statement.setObject(i + 1, value);
+            }
+        }
+    }
+
+    /**
+     * Writes and commits the buffered rows on a pooled connection, which goes back to the pool afterwards.
+     */
+    private void write() {
+        if (rows.isEmpty()) {
+            return;
+        }
+        List<Object[]> batch = new ArrayList<>(rows);
+        rows.clear();
+        long start = System.nanoTime();
+        boolean error = false;
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            // cached with the connection; must not be closed
+            PreparedStatement statement = connection.unwrap(StatementCache.class).prepare(name, sql);
+            try {
+                int pending = 0;
+                for (Object[] values : batch) {
+                    bind(connection, statement, values);
+                    statement.addBatch();
+                    if (++pending == batchSize) {
+                        statement.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    statement.executeBatch();
+                }
+                connection.commit();
+                written += batch.size();
+                onCommit.run();
+            } catch (SQLException e) {
+                error = true;
+                System.err.println(name + ": write of " + batch.size() + " rows failed, retrying them one by one: " +
+                        e.getMessage());
+                retryRowByRow(connection, statement, batch);
+            }
+        } catch (SQLException e) {
+            error = true;
+            System.err.println(name + ": no connection for " + batch.size() + " rows: " + e.getMessage());
+            for (Object[] values : batch) {
+                fail(values, e);
+            }
+        } finally {
+            stats.recordBatch(name, System.nanoTime() - start, batch.size(), error);
+        }
+    }
+
+    /**
+     * Rolls back the failed transaction and sends every row in its own transaction, the way rows were written
+     * before batching.
+     */
+    private void retryRowByRow(Connection connection, PreparedStatement statement, List<Object[]> batch) {
+        rollback(connection, statement);
+        long retried = 0;
+        for (Object[] values : batch) {
+            try {
+                bind(connection, statement, values);
+                statement.executeUpdate();
+                connection.commit();
+                retried++;
+            } catch (SQLException e) {
+                rollback(connection, statement);
+                fail(values, e);
+            }
+        }
+        written += retried;
+        if (retried > 0) {
+            onCommit.run();
+        }
+    }
+
+    private void rollback(Connection connection, PreparedStatement statement) {
+        try {
+            statement.clearBatch();
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void fail(Object[] values, SQLException e) {
+        failed++;
+        if (failures.size() < MAX_KEPT_FAILURES) {
+            failures.add(new Failure(name, values, e));
+        }
+        System.err.println(name + ": row failed: " + e.getMessage());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized long getWrittenCount() {
+        return written;
+    }
+
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * Returns the rows that failed since the last call and forgets them. {@link #getFailedCount()} also counts
+     * failures beyond the {@value #MAX_KEPT_FAILURES} that are kept.
+     */
+    public synchronized List<Failure> takeFailures() {
+        List<Failure> taken = new ArrayList<>(failures);
+        failures.clear();
+        return taken;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flusher.cancel(false);
+        write();
+        closed = true;
+        if (failed > 0) {
+            System.err.println(name + ": " + written + " rows written, " + failed + " rows failed");
+        }
+    }
+}
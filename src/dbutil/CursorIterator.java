@@ -0,0 +1,101 @@
+package dbutil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a query through a server-side cursor. PostgreSQL only uses a cursor when autocommit is off and a
+ * fetch size is set, so only {@code fetchSize} rows are held in memory at a time. The connection goes back to the
+ * pool once the rows are exhausted or the iterator is closed.
+ */
+public class CursorIterator<T> implements Iterator<T>, AutoCloseable {
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+    private final RowMapper<T> mapper;
+    private final QueryStats stats;
+    private final String sql;
+    private final long started = System.nanoTime();
+    private long rows = 0;
+    private boolean failed = false;
+    private Boolean hasNext = null;
+    private boolean closed = false;
+
+    CursorIterator(Connection connection, QueryStats stats, String sql, int fetchSize, RowMapper<T> mapper,
+                   Object... params) throws SQLException {
+        this.connection = connection;
+        this.stats = stats;
+        this.sql = sql;
+        this.mapper = mapper;
+        try {
+            connection.setAutoCommit(false);
+            this.statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            this.statement.setFetchSize(fetchSize);
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+            this.resultSet = statement.executeQuery();
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (hasNext == null) {
+            try {
+                hasNext = !closed && resultSet.next();
+            } catch (SQLException e) {
+                failed = true;
+                close();
+                throw new RuntimeException(e);
+            }
+            if (!hasNext) {
+                close();
+            }
+        }
+        return hasNext;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hasNext = null;
+        try {
+            T value = mapper.map(resultSet);
+            rows++;
+            return value;
+        } catch (SQLException e) {
+            failed = true;
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        stats.record("cursor:" + sql, System.nanoTime() - started, rows, failed);
+        try {
+            resultSet.close();
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {}
+        }
+    }
+}
@@ -1,469 +1,378 @@
 package dbutil;
 
-import data.mgnify.Assembly;
-import data.mgnify.Sample;
-import pipeline.mgnify.GetBiomeTypes;
-
-import java.sql.*;
-import javax.sql.rowset.CachedRowSet;
-import javax.sql.rowset.RowSetProvider;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.Properties;
-
-public class Database {
-
-    private String url;
-    private String user;
-    private String password;
-
-    private final Connection connection;
-
+import java.util.function.Consumer;
+
+/**
+ * The atlas database on PostgreSQL. Besides the {@link AtlasDatabase} operations it offers those that rely on
+ * PostgreSQL: run leases (SELECT ... FOR UPDATE SKIP LOCKED), LISTEN/NOTIFY, COPY loads and exports, and the
+ * set-based staging merge.
+ */
+public class Database extends JdbcDatabase {
+
+    public static final String DEAD_LETTER_STATUS = "dead letter";
+    /**
+     * Channel notified with the assembly accession whenever a run's status becomes 'success' (schema migration 7).
+     */
+    public static final String RUN_SUCCESS_CHANNEL = "antismash_run_success";
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final boolean connectable;
+    private volatile boolean leaseColumnsChecked = false;
+
+    /**
+     * Only reads the configuration. The connection pool is opened by the first statement, so tools that never touch
+     * the database do not wait for a connection.
+     */
     public Database() {
-        loadConfiguration();
-        this.connection = this.connect();
+        this(false, true);
     }
 
+    /**
+     * With {@code connect} the pool is opened right away, so that a misconfigured database fails at startup.
+     * Without it the database is never connected and every statement throws {@link IllegalStateException}; use
+     * {@link #Database()} to connect on first use.
+     */
     public Database(boolean connect) {
-        loadConfiguration();
-        if(!connect) {
-            this.connection = null;
-            return;
-        } else {
-            this.connection = this.connect();
-        }
+        this(connect, connect);
     }
 
-    private void loadConfiguration() {
-        Properties props = new Properties();
-        try(InputStream in = new FileInputStream("db.properties")) {
-            props.load(in);
-        } catch (IOException ignored) {}
-
-        Map<String, String> env = System.getenv();
-        this.url = env.getOrDefault("DB_URL", props.getProperty("db.url", "jdbc:postgresql://localhost:5432/atlas"));
-        this.user = env.getOrDefault("DB_USER", props.getProperty("db.user", "user"));
-        this.password = env.getOrDefault("DB_PASSWORD", props.getProperty("db.password", "password"));
-    }
-
-    private Connection connect() {
-        Connection conn = null;
-
-        try {
-            conn = DriverManager.getConnection(url, user, password);
-            System.err.println("Connected to the PostgreSQL server successfully!");
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private Database(boolean connectNow, boolean connectable) {
+        this.url = getSetting("DB_URL", "db.url", "jdbc:postgresql://localhost:5432/atlas");
+        this.user = getSetting("DB_USER", "db.user", "user");
+        this.password = getSetting("DB_PASSWORD", "db.password", "password");
+        this.connectable = connectable;
+        if (connectNow) {
+            pool();
         }
-        return conn;
     }
 
-    public void insertAssemblies(List<Assembly> assemblyList) {
-        String assemblySQL = "INSERT INTO mgnify_asms(assembly, sampleacc, submittedseqs, envmat, longitude, latitude, envbiome, " +
-                "collectdate, species, geoloc, biosample, hosttaxid, envfeat, downloadlink) " +
-                "VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,?) " +
-                "ON CONFLICT(assembly) DO NOTHING";
-
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-
-        try (PreparedStatement pstmt = connection.prepareStatement(assemblySQL, Statement.RETURN_GENERATED_KEYS)) {
-
-            for(Assembly assembly : assemblyList) {
-                System.out.println("Inserting " + assembly.getId());
-                Sample sample = assembly.getSample();
-                Map<String, String> attributes = sample.getAttributes();
-
-                pstmt.setString(1, assembly.getId());
-                pstmt.setString(2, sample.getId());
-                String submittedNucleotideSequences = assembly.getAnalysisSummary().get("Submitted nucleotide sequences");
-                int sns = submittedNucleotideSequences == null || submittedNucleotideSequences.equals("null") ? -1 : Integer.parseInt(submittedNucleotideSequences);
-                pstmt.setInt(3, sns);
-                pstmt.setString(4, attributes.get("environmentMaterial"));
-                pstmt.setDouble(5, Double.parseDouble(attributes.get("longitude")));
-                pstmt.setDouble(6, Double.parseDouble(attributes.get("latitude")));
-                pstmt.setString(7, attributes.get("environmentBiome") );
-                java.util.Date collectionDate = attributes.get("collectionDate").equals("null") || attributes.get("collectionDate").isEmpty() ? null : dateFormat.parse(attributes.get("collectionDate"));
-                pstmt.setDate(8, collectionDate == null ? null : new Date(collectionDate.getTime()));
-                pstmt.setString(9, attributes.get("species"));
-                pstmt.setString(10, attributes.get("geoLocName"));
-                pstmt.setString(11, attributes.get("biosample"));
-                pstmt.setInt(12, Integer.parseInt(attributes.get("hostTaxID")));
-                pstmt.setString(13, attributes.get("environmentFeature"));
-                pstmt.setString(14, assembly.getDownloadLink());
-                pstmt.addBatch();
-            }
-
-            int[] result = pstmt.executeBatch();
-            System.out.println("Inserted " + result.length + " assemblies ");
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } catch (ParseException e) {
-            e.printStackTrace();
+    /**
+     * Returns the database selected by DB_MODE: PostgreSQL by default, or an {@link EmbeddedDatabase} for "embedded".
+     */
+    public static AtlasDatabase open() {
+        if ("embedded".equalsIgnoreCase(getSetting("DB_MODE", "db.mode", "postgresql"))) {
+            return new EmbeddedDatabase();
         }
-
-        insertMetadata(assemblyList);
-
+        return new Database();
     }
 
-    private void insertMetadata(List<Assembly> assemblyList) {
-        String metadataSQL = "INSERT INTO sample_metadata(sample, meta_key, meta_value) VALUES (?,?,?) " +
-                "ON CONFLICT(sample, meta_key, meta_value) DO NOTHING";
-
-        try (PreparedStatement pstmt = connection.prepareStatement(metadataSQL, Statement.RETURN_GENERATED_KEYS)) {
-
-
-            for (Assembly assembly : assemblyList) {
-                Sample sample = assembly.getSample();
-                Map<String, String> metadata = sample.getMetadata();
-                for (String key : metadata.keySet()) {
-                    pstmt.setString(1, sample.getId());
-                    pstmt.setString(2, key);
-                    pstmt.setString(3, metadata.get(key));
-                    pstmt.addBatch();
-                }
-            }
-
-            int[] result = pstmt.executeBatch();
-            System.out.println("Inserted " + result.length + " metadata fields");
-            pstmt.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    protected ConnectionPool openPool() {
+        if (!connectable) {
+            throw new IllegalStateException("Database was created with connect=false and never connects");
         }
-    }
-
-    public String[] getNextInQueueRand() {
-        String sql = "SELECT * FROM mgnify_asms WHERE assembly IN (SELECT assembly FROM antismash_runs WHERE status IS NULL) ORDER BY random()LIMIT 1";
-//        String sql = "SELECT * FROM mgnify_asms WHERE assembly NOT IN (SELECT assembly FROM antismash_runs WHERE status != 'success') ORDER BY random()LIMIT 1";
-
-        try (Statement statement = this.connection.createStatement();
-             ResultSet resultSet = statement.executeQuery(sql)) {
-            if (resultSet.next()) {
-                String assemblyId = resultSet.getString(1);
-                String link = resultSet.getString(14);
-                return new String[]{assemblyId, link};
-            }
+        Properties info = new Properties();
+        info.setProperty("user", user);
+        info.setProperty("password", password);
+        info.setProperty("stringtype", getSetting("DB_STRINGTYPE", "db.stringtype", "unspecified"));
+        info.setProperty("reWriteBatchedInserts", getSetting("DB_REWRITE_BATCHED_INSERTS", "db.rewrite.batched.inserts", "true"));
+        info.setProperty("prepareThreshold", getSetting("DB_PREPARE_THRESHOLD", "db.prepare.threshold", "2"));
+
+        ConnectionPool connectionPool = createPool(url, info);
+        try {
+            connectionPool.getConnection().close();
+            System.err.println("Connected to the PostgreSQL server successfully! (pool size " + connectionPool.getMaxSize() + ")");
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return null;
+        return connectionPool;
     }
 
-    public String getRunStatus(String assemblyId) {
-        String sql = "SELECT status FROM antismash_runs WHERE assembly = '" + assemblyId + "'";
-        try (PreparedStatement statement = connection.prepareStatement(sql);
-             ResultSet resultSet = statement.executeQuery()) {
-            if (resultSet.next()) {
-                return resultSet.getString(1);
+    /**
+     * Runs once when the pool has been opened, before any other statement uses it. Migrations are applied here only
+     * with DB_MIGRATE=true, and skipped if another process is applying them; MigrateSchema applies them otherwise.
+     */
+    protected void onConnect(ConnectionPool connectionPool) {
+        slowQueryLog = createSlowQueryLog(connectionPool);
+        if (Boolean.parseBoolean(getSetting("DB_MIGRATE", "db.migrate", "false"))) {
+            try {
+                if (new SchemaMigrations(connectionPool).tryApply() < 0) {
+                    System.err.println("Schema migrations are being applied by another process, skipping");
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return "";
     }
 
-    public void updateRunStatus(String assemblyId, String status) {
-        String sql = "UPDATE antismash_runs SET run_timestamp = CURRENT_TIMESTAMP, status = '" + status +
-                "' WHERE assembly = '" + assemblyId + "'";
-        System.out.println(sql);
-
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * Statements slower than DB_SLOW_QUERY_MS are written with their bind values and plan to DB_SLOW_QUERY_LOG.
+     * A threshold of 0 or less disables the log.
+     */
+    private SlowQueryLog createSlowQueryLog(ConnectionPool connectionPool) {
+        int threshold = getIntSetting("DB_SLOW_QUERY_MS", "db.slow.query.ms", 1000);
+        if (threshold <= 0) {
+            return null;
         }
+        return new SlowQueryLog(connectionPool, threshold,
+                getSetting("DB_SLOW_QUERY_LOG", "db.slow.query.log", "slow-queries.log"),
+                getIntSetting("DB_SLOW_QUERY_LOG_MAX_MB", "db.slow.query.log.max.mb", 10) * 1024L * 1024L,
+                getIntSetting("DB_SLOW_QUERY_LOG_FILES", "db.slow.query.log.files", 5),
+                getIntSetting("DB_SLOW_QUERY_EXPLAIN_COOLDOWN_MS", "db.slow.query.explain.cooldown.ms", 600000));
     }
 
-    public void updateDetails(String assemblyId, String asVer, String pipeVer, String server, String resPath, String status) {
-        String sql = "UPDATE antismash_runs SET antismash_version = '" + asVer + "', pipeline_version = '" + pipeVer + "', run_server = '"
-                + server + "', res_path = '" +  resPath + "', status = '" + status + "', run_timestamp = CURRENT_TIMESTAMP WHERE assembly = '"
-                + assemblyId + "'";
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
+    /**
+     * Brings the schema up to date with {@link SchemaMigrations}, waiting for another process that is applying them.
+     * Index builds can take hours on large tables, so this is meant for MigrateSchema rather than every worker.
+     */
+    public void migrate() {
+        try {
+            new SchemaMigrations(pool()).apply();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public void insertRun(String assemblyId, String ASver, String pipeVer, String server, String path, String status) {
-        String sql = "INSERT INTO antismash_runs (assembly, antismash_version, pipeline_version, run_timestamp, " +
-                "run_server, res_path, status) VALUES ('" + assemblyId + "', '" + ASver + "', '" + pipeVer +
-                "', CURRENT_TIMESTAMP, '" + server + "', '" + path + "', '" + status + "') " +
-                "ON CONFLICT(assembly) DO NOTHING";
-//        System.out.println(sql);
-
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
+    public void printIndexReport() {
+        try {
+            new SchemaMigrations(pool()).reportIndexes(System.err);
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public List<String> getAllAssemblyAccessions() {
-        String sql = "SELECT assembly FROM mgnify_asms";
-
-        try (PreparedStatement preparedStatement = connection.prepareStatement(sql);
-             ResultSet resultSet = preparedStatement.executeQuery()) {
-            List<String> assemblyAccessions = new ArrayList<>();
-            while (resultSet.next()) {
-                assemblyAccessions.add(resultSet.getString(1));
-            }
-            return assemblyAccessions;
+    /**
+     * Atomically leases up to {@code n} queued assemblies to this worker. Rows locked by other workers are skipped
+     * instead of waited on, so concurrent workers never receive the same assembly. Returns {assembly, downloadlink}
+     * pairs; the claimed runs get the status "in queue &lt;server&gt;" as before.
+     */
+    public List<String[]> claimRuns(String server, String workerId, int n, long leaseMillis) {
+        ensureRunLeaseColumns();
+        flushWriter("insertRun");
+        String sql = "WITH claimable AS (\n" +
+                "    SELECT ar.assembly FROM antismash_runs AS ar\n" +
+                "    WHERE ar.status IS NULL\n" +
+                "    LIMIT ?\n" +
+                "    FOR UPDATE OF ar SKIP LOCKED\n" +
+                ")\n" +
+                "UPDATE antismash_runs AS ar\n" +
+                "SET status = ?, run_server = ?, worker_id = ?, run_timestamp = CURRENT_TIMESTAMP,\n" +
+                "    attempts = COALESCE(ar.attempts, 0) + 1,\n" +
+                "    lease_expires = CURRENT_TIMESTAMP + ? * INTERVAL '1 millisecond'\n" +
+                "FROM claimable, mgnify_asms AS m\n" +
+                "WHERE ar.assembly = claimable.assembly AND m.assembly = ar.assembly\n" +
+                "RETURNING ar.assembly, m.downloadlink";
+
+        List<String[]> claimed = new ArrayList<>();
+        try {
+            query("claimRuns", sql, resultSet -> {
+                while (resultSet.next()) {
+                    claimed.add(new String[]{resultSet.getString(1), resultSet.getString(2)});
+                }
+                return null;
+            }, n, "in queue " + server, server, workerId, leaseMillis);
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return null;
+        return claimed;
     }
 
-    public List<String> getNewFinishedRuns() {
-//        String sql = "SELECT assembly FROM antismash_runs WHERE status = 'success'";
-        String sql = "SELECT ar.assembly\n" +
-                "FROM antismash_runs AS ar\n" +
-                "         LEFT JOIN protoclusters AS pc ON ar.assembly = pc.assembly\n" +
-                "WHERE ar.status = 'success' AND pc.assembly IS NULL AND ar.res_path NOT LIKE '/vol/%';";
-
-        try (PreparedStatement preparedStatement = connection.prepareStatement(sql);
-             ResultSet resultSet = preparedStatement.executeQuery()) {
-            List<String> assemblyAccessions = new ArrayList<>();
-            while (resultSet.next()) {
-                assemblyAccessions.add(resultSet.getString(1));
-            }
-            return assemblyAccessions;
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * The lease columns are added by schema migration 1. If they are missing, only that migration is applied here,
+     * so that claiming a run never waits for the index migrations.
+     */
+    private void ensureRunLeaseColumns() {
+        if (leaseColumnsChecked) {
+            return;
         }
-        return null;
-    }
-
-    public List<String> getAllFinishedRuns() {
-                String sql = "SELECT assembly FROM antismash_runs WHERE status = 'success'";
-        try (PreparedStatement preparedStatement = connection.prepareStatement(sql);
-             ResultSet resultSet = preparedStatement.executeQuery()) {
-            List<String> assemblyAccessions = new ArrayList<>();
-            while (resultSet.next()) {
-                assemblyAccessions.add(resultSet.getString(1));
+        try {
+            SchemaMigrations migrations = new SchemaMigrations(pool());
+            if (!migrations.hasRunLeaseColumns()) {
+                migrations.apply(1, true);
             }
-            return assemblyAccessions;
+            leaseColumnsChecked = true;
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return null;
     }
 
-    public void closeConnection() {
+    /**
+     * Extends the lease of a claimed run. Returns false if the run is no longer leased to this worker, e.g. because
+     * the lease expired and was reaped.
+     */
+    public boolean renewLease(String assemblyId, String workerId, long leaseMillis) {
+        String sql = "UPDATE antismash_runs SET lease_expires = CURRENT_TIMESTAMP + ? * INTERVAL '1 millisecond' " +
+                "WHERE assembly = ? AND worker_id = ? AND lease_expires IS NOT NULL";
         try {
-            this.connection.close();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public void insertPC(String assembly, String contig, String region, int number, String category, String product,
-                         String contigEdge, String gbkFile) {
-        String sql = "INSERT INTO protoclusters (assembly, contig, region, protocluster_num, " +
-                "category, product, contig_edge, gbk_file) VALUES ('" + assembly + "', '" + contig + "', '" + region +
-                "', '"  + number + "', '"  + category + "', '" + product + "', '" + contigEdge + "', '" + gbkFile + "')";
-//        System.out.println(sql);
-
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
+            return update("renewLease", sql, leaseMillis, assemblyId, workerId) == 1;
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return false;
     }
 
-    public void insertClustering(String bgc, String bgcType, int familyNumber, double clusteringThreshold, String assembly) {
-        String sql = "INSERT INTO bigscape_clustering (bgc_name, bgc_type, family_number, clustering_threshold, assembly) VALUES ('" +
-                bgc + "', '" + bgcType + "', '" + familyNumber + "', '" + clusteringThreshold + "', '" + assembly + "')";
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            System.out.println(sql);
-            e.printStackTrace();
-        }
-    }
-    public void insertNetworkEdge(String clustername1, String clustername2, double rawDistance, double squaredSimilarity,
-                                  double jaccardIndex, double dssIndex, double adjacencyIndex, double rawDSSnonAnchor,
-                                  double rawDSSAnchor, int nonAnchorDomains, int anchorDoamins, String combinedGroup,
-                                  String sharedGroup, String bgcType, double clusteringThreshold) {
-        String sql = "INSERT INTO bigscape_networks (clustername1, clustername2, raw_distance, squared_similarity, jaccard_index, " +
-                "dss_index, adjacency_index, dss_non_anchor, raw_dss_anchor, non_anchor_domains, anchor_domains, " +
-                "combined_group, shared_group, bgc_type, clustering_threshold) VALUES ('" + clustername1 + "', '" +
-                clustername2 + "', '" + rawDistance + "', '" + squaredSimilarity + "', '" + jaccardIndex + "', '" +
-                dssIndex + "', '" + adjacencyIndex + "', '" + rawDSSnonAnchor + "', '" + rawDSSAnchor + "', '" +
-                nonAnchorDomains + "', '" + anchorDoamins + "', '" + combinedGroup + "', '" + sharedGroup + "', '" +
-                bgcType + "', '" + clusteringThreshold + "')";
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
+    /**
+     * Ends the lease of a claimed run. Successful runs are marked "success" with the path of their results;
+     * failed runs go back to the queue, or to {@link #DEAD_LETTER_STATUS} once they have been attempted
+     * {@code maxAttempts} times.
+     */
+    public void finishRun(String assemblyId, String workerId, boolean succeeded, String resPath, int maxAttempts) {
+        ensureRunLeaseColumns();
+        String sql = "UPDATE antismash_runs SET worker_id = NULL, lease_expires = NULL, run_timestamp = CURRENT_TIMESTAMP, " +
+                "res_path = COALESCE(?, res_path), " +
+                "status = CASE WHEN ? THEN 'success' WHEN attempts >= ? THEN '" + DEAD_LETTER_STATUS + "' ELSE NULL END " +
+                "WHERE assembly = ? AND worker_id = ?";
+        try {
+            update("finishRun", sql, succeeded ? resPath : null, succeeded, maxAttempts, assemblyId, workerId);
         } catch (SQLException e) {
-            System.err.println(sql);
             e.printStackTrace();
         }
     }
 
-    public List<String> getGCFFamily(String bgcName) {
-        List<String> bgcs = new ArrayList<>();
-        String sql = "SELECT *\n" +
-                "FROM bigscape_clustering\n" +
-                "WHERE clustering_threshold = 0.3\n" +
-                "  AND family_number = (\n" +
-                "    SELECT family_number\n" +
-                "    FROM bigscape_clustering\n" +
-                "    WHERE bgc_name = '" + bgcName + "'\n" +
-                "      AND clustering_threshold = 0.3\n" +
-                "    LIMIT 1\n" +
-                ");";
-        try (PreparedStatement statement = connection.prepareStatement(sql);
-             ResultSet resultSet = statement.executeQuery()) {
-            while (resultSet.next()) {
-                String bgcNameFam = resultSet.getString(1);
-                bgcs.add(bgcNameFam);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return bgcs;
+    public void finishRun(String assemblyId, String workerId, boolean succeeded, String resPath) {
+        finishRun(assemblyId, workerId, succeeded, resPath, getMaxRunAttempts());
     }
 
-    public String getGCFFamilyName(String bgcName) {
-        String sql = "SELECT family_number FROM bigscape_clustering " +
-                "WHERE bgc_name = '" + bgcName + "' " +
-                "AND clustering_threshold = 0.3;";
-        try (PreparedStatement statement = connection.prepareStatement(sql);
-             ResultSet resultSet = statement.executeQuery()) {
-            while (resultSet.next()) {
-                return resultSet.getString(1);
-            }
+    /**
+     * Returns runs whose lease has expired (the worker stopped sending heartbeats) to the queue. Runs that have
+     * already been attempted {@code maxAttempts} times are moved to {@link #DEAD_LETTER_STATUS} instead.
+     * Runs marked "in queue" before leases existed have no lease; they are reaped once their run_timestamp is
+     * older than DB_LEGACY_LEASE_HOURS. Returns {assembly, new status} for every reaped run.
+     */
+    public List<String[]> reapExpiredLeases(int maxAttempts) {
+        ensureRunLeaseColumns();
+        String sql = "UPDATE antismash_runs SET worker_id = NULL, lease_expires = NULL, " +
+                "status = CASE WHEN attempts >= ? THEN '" + DEAD_LETTER_STATUS + "' ELSE NULL END " +
+                "WHERE lease_expires < CURRENT_TIMESTAMP " +
+                "OR (lease_expires IS NULL AND worker_id IS NULL AND status LIKE 'in queue %' " +
+                "AND run_timestamp < CURRENT_TIMESTAMP - ? * INTERVAL '1 hour') " +
+                "RETURNING assembly, status";
+        int legacyLeaseHours = getIntSetting("DB_LEGACY_LEASE_HOURS", "db.legacy.lease.hours", 24);
+        List<String[]> reaped = new ArrayList<>();
+        try {
+            query("reapExpiredLeases", sql, resultSet -> {
+                while (resultSet.next()) {
+                    reaped.add(new String[]{resultSet.getString(1), resultSet.getString(2)});
+                }
+                return null;
+            }, maxAttempts, legacyLeaseHours);
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return "";
+        return reaped;
     }
 
-    public void addBiome(GetBiomeTypes.Biome biome) {
-        String sql = "INSERT INTO biomes (id, samplescount, biomename, lineage, sampleslink, genomeslink, childrenlink, studieslink)" +
-                "VALUES ('" + biome.getId() + "', '" + biome.getSamplesCount() + "', '" + biome.getBiomeName() + "', '" +  biome.getLineage()
-                + "', '" + biome.getSamplesRelated()+ "', '" + biome.getGenomesRelated() + "', '" + biome.getChildrenRelated()
-                + "', '" + biome.getStudiesRelated()  + "')" + "ON CONFLICT(id) DO NOTHING";
-        System.out.println(sql);
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    public List<String[]> reapExpiredLeases() {
+        return reapExpiredLeases(getMaxRunAttempts());
     }
 
-    public CachedRowSet executeQuery(String sql) {
-        try (PreparedStatement statement = connection.prepareStatement(sql);
-             ResultSet resultSet = statement.executeQuery()) {
-            CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
-            rowSet.populate(resultSet);
-            return rowSet;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return null;
+    public int getMaxRunAttempts() {
+        return getIntSetting("DB_MAX_RUN_ATTEMPTS", "db.max.run.attempts", 3);
     }
 
-    public <T> T executeQuery(String sql, ResultSetHandler<T> handler) {
-        try (PreparedStatement statement = connection.prepareStatement(sql);
-             ResultSet resultSet = statement.executeQuery()) {
-            return handler.handle(resultSet);
-        } catch (SQLException e) {
-            e.printStackTrace();
+    public static String defaultWorkerId(String server) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
         }
-        return null;
+        return server + "@" + host + ":" + ProcessHandle.current().pid();
     }
 
-    public void executeUpdate(String sql) {
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Starts listening on {@code channel}. Payloads are passed to {@code consumer} on the listener thread;
+     * {@code onReconnect} runs after a lost connection has been re-established.
+     */
+    public NotificationListener listen(String channel, Consumer<String> consumer, Runnable onReconnect) {
+        return new NotificationListener(pool(), channel, consumer, onReconnect);
     }
 
-    public void insertGCFMembership(String gcfId, String bgcId, String membershipValue, int threshold) {
-        String sql = "INSERT INTO bigslice_gcf_membership (gcf_id, bgc_id, membership_value, threshold) VALUES (" + gcfId + ", " +
-                bgcId + ", " + membershipValue + ", " + threshold + ")" + " ON CONFLICT DO NOTHING";
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        this.executeUpdate("UPDATE protoclusters SET bigslice_gcf_id = " + gcfId + " WHERE bigslice_bgc_id = " + bgcId);
+    public RowLoader copyLoader(String table, String... columns) throws SQLException {
+        return new CopyLoader(pool().getConnection(), getQueryStats(), () -> invalidateCache(table), table, columns);
     }
 
-//    public void insertRegion(String run, String contigName, int recordId, String products, String contigEdge, String regionNumber, String location) {
-//        String sql = "INSERT INTO regions (assembly, contigName, products, contig_edge, contigNumber, regionNumber, location) VALUES (" +
-//                run + ", " + "'" + contigName + "'" + ", " + "ARRAY"  + products.replaceAll("\"", "'") + ", " + contigEdge + ", " +
-//                recordId + ", " + regionNumber + ", " + location + ")" + " ON CONFLICT DO NOTHING";
-//        System.out.println(sql);
-//        try {
-//            PreparedStatement statement = connection.prepareStatement(sql);
-//            int i = statement.executeUpdate();
-//            statement.close();
-//        } catch (SQLException e) {
-//            e.printStackTrace();
-//        }
-//    }
-
-    public void insertRegion(String run, String contigName, int recordId, String products, String contigEdge, String regionNumber, String location) {
-        String sql = "INSERT INTO regions (assembly, contig_name, products, contig_edge, contig_number, region_number, location) VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT DO NOTHING";
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setString(1, run);
-            statement.setString(2, contigName);
-            String[] productArray = products
-                    .replaceAll("[\\[\\]\"]", "")
-                    .split(",");
-            statement.setArray(3, connection.createArrayOf("text", productArray));
-            statement.setBoolean(4, Boolean.parseBoolean(contigEdge)); // Assuming contig_edge is a boolean
-            statement.setInt(5, recordId);
-            statement.setInt(6, Integer.parseInt(regionNumber)); // Assuming regionNumber is an integer
-            statement.setString(7, location);
-
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Loader that splits a file over DB_COPY_STREAMS parallel COPY streams and swaps the result in for {@code table}.
+     * {@code keyColumn} is the zero-based column the lines are hash-partitioned on.
+     */
+    public ParallelCopyLoader parallelCopyLoader(String table, String copyOptions, int keyColumn, String... columns) {
+        return new ParallelCopyLoader(pool(), getQueryStats(), table, copyOptions,
+                getIntSetting("DB_COPY_STREAMS", "db.copy.streams", 4), keyColumn, columns);
     }
 
-    public void insertRegion(String run, String recordName, int length, String productCategories, String anchor, int start, int end, boolean isContigEdge, String type, String products, int regionNum) {
-        String sql = "INSERT INTO regions (assembly, contig_name, contig_len, product_categories, anchor, start, \"end\", contig_edge, type, products, region_num) VALUES (?, ?, ?, ARRAY[?], ?, ?, ?, ?, ?, ARRAY[?], ?) ON CONFLICT DO NOTHING";
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setString(1, run);
-            statement.setString(2, recordName);
-            statement.setInt(3, length);
-
-            String[] productArray = productCategories
-                    .replaceAll("[\\[\\]\"]", "")
-                    .split(",");
-            statement.setArray(4, connection.createArrayOf("text", productArray));
+    /**
+     * Same columns and options as the {@code \copy regions_new ...} command in CreateBigSliceTables.
+     */
+    public ParallelCopyLoader regionsNewLoader() {
+        return parallelCopyLoader("regions_new", "FORMAT csv, DELIMITER E'\\t', NULL '', FORCE_NULL (membership_value)", 0,
+                "region_id", "assembly", "contig_name", "contig_len", "product_categories", "anchor", "start", "\"end\"",
+                "contig_edge", "type", "products", "region_num", "bigslice_region_id", "bigslice_gcf_id",
+                "longest_biome", "membership_value", "gcf_from_search");
+    }
 
-            statement.setString(5, anchor);
-            statement.setInt(6, start);
-            statement.setInt(7, end);
-            statement.setBoolean(8, isContigEdge);
-            statement.setString(9, type);
+    public ParallelCopyLoader bigsliceGcfNewLoader() {
+        return parallelCopyLoader("bigslice_gcf_new", "FORMAT csv, DELIMITER E'\\t', NULL ''", 0,
+                "gcf_id", "num_core_regions", "core_products", "core_biomes", "num_all_regions", "all_products",
+                "all_biomes");
+    }
 
-            String[] productArray2 = products
-                    .replaceAll("[\\[\\]\"]", "")
-                    .split(",");
-            statement.setArray(10, connection.createArrayOf("text", productArray2));
+    public ParallelCopyLoader bigsliceGcfMembershipNewLoader() {
+        return parallelCopyLoader("bigslice_gcf_membership_new", "FORMAT csv, DELIMITER E'\\t', NULL ''", 1,
+                "gcf_id", "bgc_id", "region_id", "membership_value", "threshold", "gcf_from_search");
+    }
 
-            statement.setInt(11, regionNum);
+    public ParallelCopyExporter exporter() {
+        return new ParallelCopyExporter(pool(), getQueryStats(), getIntSetting("DB_EXPORT_STREAMS", "db.export.streams", 4));
+    }
 
+    /**
+     * Creates (or empties) an UNLOGGED staging table. Unlogged tables skip the WAL, which makes them cheap to bulk
+     * load; their contents do not survive a crash, which is fine for data that is merged straight away.
+     */
+    public void prepareStagingTable(String table, String columnDefinitions) {
+        executeUpdate("CREATE UNLOGGED TABLE IF NOT EXISTS " + table + " (" + columnDefinitions + ")");
+        executeUpdate("TRUNCATE " + table);
+    }
 
-            statement.executeUpdate();
+    /**
+     * Set-based equivalent of running {@code UPDATE protoclusters SET bigslice_bgc_id ... WHERE gbk_file LIKE ...}
+     * per BGC and {@link #insertGCFMembership} per membership. Expects bigslice_bgc_staging(bgc_id, gbk_name) and
+     * bigslice_membership_staging(gcf_id, bgc_id, membership_value) to be loaded, and applies both in one
+     * transaction with join-based statements.
+     */
+    public void mergeGCFMembershipStaging(int threshold) {
+        String[] statements = {
+                "ANALYZE bigslice_bgc_staging",
+                "ANALYZE bigslice_membership_staging",
+                "UPDATE protoclusters AS pc SET bigslice_bgc_id = s.bgc_id " +
+                        "FROM bigslice_bgc_staging AS s " +
+                        "WHERE regexp_replace(pc.gbk_file, '^.*/', '') = s.gbk_name",
+                "INSERT INTO bigslice_gcf_membership (gcf_id, bgc_id, membership_value, threshold) " +
+                        "SELECT gcf_id, bgc_id, membership_value, " + threshold + " FROM bigslice_membership_staging " +
+                        "ON CONFLICT DO NOTHING",
+                "UPDATE protoclusters AS pc SET bigslice_gcf_id = m.gcf_id " +
+                        "FROM bigslice_membership_staging AS m " +
+                        "WHERE pc.bigslice_bgc_id = m.bgc_id"
+        };
+        try (Connection connection = pool().getConnection();
+             Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            try {
+                for (int i = 0; i < statements.length; i++) {
+                    long start = System.nanoTime();
+                    int rows = statement.executeUpdate(statements[i]);
+                    getQueryStats().record("mergeGCFMembershipStaging#" + i, System.nanoTime() - start, rows, false);
+                    System.out.println(rows + " rows: " + statements[i]);
+                }
+                connection.commit();
+                invalidateCache("protoclusters");
+                invalidateCache("bigslice_gcf_membership");
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
-
 }
@@ -0,0 +1,196 @@
+package dbutil;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the atlas database on H2 in PostgreSQL compatibility mode. The tables the pipeline reads
+ * and writes are created when the database is opened, so parsing and aggregation runs can be repeated and timed
+ * without a PostgreSQL server. Selected with DB_MODE=embedded; DB_EMBEDDED_URL points it at a file database instead
+ * of memory.
+ * <p>
+ * Bulk loads go through {@link InsertLoader} instead of COPY. Run leases, LISTEN/NOTIFY, the parallel COPY loaders
+ * and exporter and the staging merge rely on PostgreSQL and are only offered by {@link Database}.
+ */
+public class EmbeddedDatabase extends JdbcDatabase {
+
+    private static final String DEFAULT_URL = "jdbc:h2:mem:atlas;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;" +
+            "DEFAULT_NULL_ORDERING=HIGH;DB_CLOSE_DELAY=-1";
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS mgnify_asms (\n" +
+                    "    assembly VARCHAR(255) PRIMARY KEY,\n" +
+                    "    sampleacc VARCHAR(255),\n" +
+                    "    submittedseqs INT,\n" +
+                    "    envmat VARCHAR(255),\n" +
+                    "    longitude DOUBLE PRECISION,\n" +
+                    "    latitude DOUBLE PRECISION,\n" +
+                    "    envbiome VARCHAR(255),\n" +
+                    "    collectdate DATE,\n" +
+                    "    species VARCHAR(255),\n" +
+                    "    geoloc VARCHAR(255),\n" +
+                    "    biosample VARCHAR(255),\n" +
+                    "    hosttaxid INT,\n" +
+                    "    envfeat VARCHAR(255),\n" +
+                    "    downloadlink VARCHAR(1024)\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS sample_metadata (\n" +
+                    "    sample VARCHAR(255),\n" +
+                    "    meta_key VARCHAR(255),\n" +
+                    "    meta_value VARCHAR(4096),\n" +
+                    "    UNIQUE (sample, meta_key, meta_value)\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS antismash_runs (\n" +
+                    "    assembly VARCHAR(255) PRIMARY KEY,\n" +
+                    "    antismash_version VARCHAR(255),\n" +
+                    "    pipeline_version VARCHAR(255),\n" +
+                    "    run_timestamp TIMESTAMP,\n" +
+                    "    run_server VARCHAR(255),\n" +
+                    "    res_path VARCHAR(1024),\n" +
+                    "    status VARCHAR(255),\n" +
+                    "    worker_id VARCHAR(255),\n" +
+                    "    lease_expires TIMESTAMP,\n" +
+                    "    attempts INT NOT NULL DEFAULT 0\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS protoclusters (\n" +
+                    "    assembly VARCHAR(255),\n" +
+                    "    contig VARCHAR(255),\n" +
+                    "    region VARCHAR(255),\n" +
+                    "    protocluster_num INT,\n" +
+                    "    category VARCHAR(255),\n" +
+                    "    product VARCHAR(255),\n" +
+                    "    contig_edge VARCHAR(255),\n" +
+                    "    gbk_file VARCHAR(1024),\n" +
+                    "    bigslice_bgc_id INT,\n" +
+                    "    bigslice_gcf_id INT\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS bigscape_clustering (\n" +
+                    "    bgc_name VARCHAR(255),\n" +
+                    "    bgc_type VARCHAR(255),\n" +
+                    "    family_number INT,\n" +
+                    "    clustering_threshold DOUBLE PRECISION,\n" +
+                    "    assembly VARCHAR(255)\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS bigscape_networks (\n" +
+                    "    clustername1 VARCHAR(255),\n" +
+                    "    clustername2 VARCHAR(255),\n" +
+                    "    raw_distance DOUBLE PRECISION,\n" +
+                    "    squared_similarity DOUBLE PRECISION,\n" +
+                    "    jaccard_index DOUBLE PRECISION,\n" +
+                    "    dss_index DOUBLE PRECISION,\n" +
+                    "    adjacency_index DOUBLE PRECISION,\n" +
+                    "    dss_non_anchor DOUBLE PRECISION,\n" +
+                    "    raw_dss_anchor DOUBLE PRECISION,\n" +
+                    "    non_anchor_domains INT,\n" +
+                    "    anchor_domains INT,\n" +
+                    "    combined_group VARCHAR(255),\n" +
+                    "    shared_group VARCHAR(255),\n" +
+                    "    bgc_type VARCHAR(255),\n" +
+                    "    clustering_threshold DOUBLE PRECISION\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS biomes (\n" +
+                    "    id VARCHAR(255) PRIMARY KEY,\n" +
+                    "    samplescount INT,\n" +
+                    "    biomename VARCHAR(255),\n" +
+                    "    lineage VARCHAR(1024),\n" +
+                    "    sampleslink VARCHAR(1024),\n" +
+                    "    genomeslink VARCHAR(1024),\n" +
+                    "    childrenlink VARCHAR(1024),\n" +
+                    "    studieslink VARCHAR(1024)\n" +
+                    ")",
+            // union of the columns written by both insertRegion variants, the region loader and BiG-SLiCE
+            "CREATE TABLE IF NOT EXISTS regions (\n" +
+                    "    region_id SERIAL PRIMARY KEY,\n" +
+                    "    assembly VARCHAR(255),\n" +
+                    "    contig_name VARCHAR(255),\n" +
+                    "    contig_len INT,\n" +
+                    "    product_categories VARCHAR ARRAY,\n" +
+                    "    anchor VARCHAR(255),\n" +
+                    "    start INT,\n" +
+                    "    \"end\" INT,\n" +
+                    "    contig_edge BOOLEAN,\n" +
+                    "    type VARCHAR(255),\n" +
+                    "    products VARCHAR ARRAY,\n" +
+                    "    region_num INT,\n" +
+                    "    contig_number INT,\n" +
+                    "    region_number INT,\n" +
+                    "    location VARCHAR(255),\n" +
+                    "    bigslice_region_id INT,\n" +
+                    "    bigslice_gcf_id INT,\n" +
+                    "    longest_biome VARCHAR(255),\n" +
+                    "    membership_value DOUBLE PRECISION,\n" +
+                    "    gcf_from_search BOOLEAN\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS bigslice_gcf_membership (\n" +
+                    "    gcf_id INT,\n" +
+                    "    bgc_id INT,\n" +
+                    "    membership_value DOUBLE PRECISION,\n" +
+                    "    threshold DOUBLE PRECISION,\n" +
+                    "    UNIQUE (gcf_id, bgc_id, threshold)\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS assembly2biome (\n" +
+                    "    assembly VARCHAR(255),\n" +
+                    "    biome VARCHAR(1024)\n" +
+                    ")",
+            "CREATE TABLE IF NOT EXISTS assembly2longestbiome (\n" +
+                    "    assembly VARCHAR(255),\n" +
+                    "    longest_biome VARCHAR(1024)\n" +
+                    ")"
+    };
+
+    private static final Pattern CONFLICT_TARGET = Pattern.compile("ON CONFLICT\\s*\\([^)]*\\)\\s*DO NOTHING",
+            Pattern.CASE_INSENSITIVE);
+
+    public EmbeddedDatabase() {
+    }
+
+    @Override
+    protected ConnectionPool openPool() {
+        Properties info = new Properties();
+        info.setProperty("user", getSetting("DB_USER", "db.user", "user"));
+        info.setProperty("password", getSetting("DB_PASSWORD", "db.password", "password"));
+        ConnectionPool connectionPool = createPool(getSetting("DB_EMBEDDED_URL", "db.embedded.url", DEFAULT_URL), info);
+        System.err.println("Started embedded database (pool size " + connectionPool.getMaxSize() + ")");
+        return connectionPool;
+    }
+
+    @Override
+    protected void onConnect(ConnectionPool connectionPool) {
+        try (Connection connection = connectionPool.getConnection();
+             Statement statement = connection.createStatement()) {
+            for (String sql : SCHEMA) {
+                statement.execute(sql);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The schema is created when the database is opened.
+     */
+    @Override
+    public void migrate() {
+    }
+
+    @Override
+    public void printIndexReport() {
+        System.err.println("No index report for the embedded database");
+    }
+
+    /**
+     * H2 only supports ON CONFLICT DO NOTHING without a conflict target.
+     */
+    @Override
+    protected String dialect(String sql) {
+        return CONFLICT_TARGET.matcher(sql).replaceAll("ON CONFLICT DO NOTHING");
+    }
+
+    @Override
+    public RowLoader copyLoader(String table, String... columns) throws SQLException {
+        return new InsertLoader(pool().getConnection(), getQueryStats(), () -> invalidateCache(table), table, columns);
+    }
+}
@@ -0,0 +1,136 @@
+package dbutil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * {@link RowLoader} for databases without the COPY protocol: rows are sent as batched INSERTs in one transaction,
+ * which is committed by {@link #commit()}. Accepts the same value types as {@link CopyLoader}.
+ */
+public class InsertLoader implements RowLoader {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final String table;
+    private final QueryStats stats;
+    private final Runnable onCommit;
+    private final long started = System.nanoTime();
+    private final int numColumns;
+    private int pending = 0;
+    private long rows = 0;
+    private boolean finished = false;
+
+    InsertLoader(Connection connection, QueryStats stats, Runnable onCommit, String table, String... columns)
+            throws SQLException {
+        this.connection = connection;
+        this.stats = stats;
+        this.onCommit = onCommit;
+        this.table = table;
+        this.numColumns = columns.length;
+        String placeholders = String.join(", ", Collections.nCopies(columns.length, "?"));
+        String sql = "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES (" + placeholders + ")";
+        try {
+            connection.setAutoCommit(false);
+            this.statement = connection.prepareStatement(sql);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public void addRow(Object... values) throws SQLException {
+        if (values.length != numColumns) {
+            throw new IllegalArgumentException("Expected " + numColumns + " values for " + table + " but got " + values.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value instanceof String[]) {
+                statement.setArray(i + 1, connection.createArrayOf("VARCHAR", (String[]) value));
+            } else if (value instanceof Collection) {
+                statement.setArray(i + 1, connection.createArrayOf("VARCHAR", ((Collection<?>) value).toArray()));
+            } else {
+                statement.setObject(i + 1, value);
+            }
+        }
+        statement.addBatch();
+        rows++;
+        if (++pending >= BATCH_SIZE) {
+            statement.executeBatch();
+            pending = 0;
+        }
+    }
+
+    public long getRowCount() {
+        return rows;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * Rolls back every row added so far.
+     */
+    public void cancel() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Sends the remaining rows and commits.
+     */
+    public void commit() throws SQLException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        boolean error = false;
+        try {
+            if (pending > 0) {
+                statement.executeBatch();
+            }
+            connection.commit();
+            System.out.println("Inserted " + rows + " rows into " + table);
+            onCommit.run();
+        } catch (SQLException e) {
+            error = true;
+            connection.rollback();
+            throw e;
+        } finally {
+            stats.recordBatch("insert:" + table, System.nanoTime() - started, rows, error);
+            release();
+        }
+    }
+
+    private void release() {
+        try {
+            statement.close();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {}
+        }
+    }
+
+    @Override
+    public void close() {
+        cancel();
+    }
+}
@@ -0,0 +1,861 @@
+package dbutil;
+
+import configutil.Settings;
+import data.mgnify.Assembly;
+import data.mgnify.Sample;
+import pipeline.mgnify.GetBiomeTypes;
+
+import java.sql.*;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The JDBC side of {@link AtlasDatabase} shared by {@link Database} and {@link EmbeddedDatabase}: settings, the
+ * lazily opened connection pool, statement statistics, the query cache, batch writers, key preloading and the
+ * pipeline's statements in the SQL both databases accept. Subclasses open the pool and provide the bulk loader.
+ */
+public abstract class JdbcDatabase implements AtlasDatabase {
+
+    private static final Pattern WRITTEN_TABLE = Pattern.compile(
+            "^\\s*(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?)\\s+(?:\\w+\\.)?(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Tables whose keys {@link #preloadKeys} can load: the targets of insertAssemblies, insertRun,
+     * insertGCFMembership and addBiome.
+     */
+    public static final String[] PRELOADABLE_TABLES = {"mgnify_asms", "antismash_runs", "bigslice_gcf_membership", "biomes"};
+
+    private volatile ConnectionPool pool;
+
+    private final QueryStats stats = new QueryStats();
+    private final QueryCache cache;
+    private final Set<String> preloadTables = new HashSet<>();
+    private final Map<String, KeySet> keySets = new ConcurrentHashMap<>();
+    protected volatile SlowQueryLog slowQueryLog;
+    private final Map<String, BatchWriter> writers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flushScheduler;
+
+    /**
+     * Only reads the configuration. The connection pool is opened by the first statement, so tools that never touch
+     * the database do not wait for a connection.
+     */
+    protected JdbcDatabase() {
+        this.cache = createQueryCache();
+        for (String table : getSetting("DB_PRELOAD_KEYS", "db.preload.keys", "").split(",")) {
+            if (table.trim().equals("all")) {
+                preloadTables.addAll(Arrays.asList(PRELOADABLE_TABLES));
+            } else if (!table.trim().isEmpty()) {
+                preloadTables.add(table.trim());
+            }
+        }
+    }
+
+    static String getSetting(String envKey, String propKey, String defaultValue) {
+        return Settings.get(envKey, propKey, defaultValue);
+    }
+
+    static int getIntSetting(String envKey, String propKey, int defaultValue) {
+        return Settings.getInt(envKey, propKey, defaultValue);
+    }
+
+    /**
+     * Returns the connection pool, opening it on first use. The pool is only published after {@link #onConnect}
+     * has run, so no statement can see a schema that is still being migrated.
+     */
+    protected ConnectionPool pool() {
+        ConnectionPool connected = pool;
+        if (connected == null) {
+            synchronized (this) {
+                if (pool == null) {
+                    ConnectionPool opened = openPool();
+                    onConnect(opened);
+                    pool = opened;
+                }
+                connected = pool;
+            }
+        }
+        return connected;
+    }
+
+    protected abstract ConnectionPool openPool();
+
+    /**
+     * Runs once when the pool has been opened, before any other statement uses it.
+     */
+    protected abstract void onConnect(ConnectionPool connectionPool);
+
+    ConnectionPool createPool(String url, Properties info) {
+        int poolSize = getIntSetting("DB_POOL_SIZE", "db.pool.size", Math.max(4, Runtime.getRuntime().availableProcessors()));
+        int acquireTimeout = getIntSetting("DB_POOL_TIMEOUT_MS", "db.pool.timeout.ms", 30000);
+        int idleTimeout = getIntSetting("DB_POOL_IDLE_TIMEOUT_MS", "db.pool.idle.timeout.ms", 600000);
+        int validationInterval = getIntSetting("DB_POOL_VALIDATION_INTERVAL_MS", "db.pool.validation.interval.ms", 30000);
+        int validationTimeout = getIntSetting("DB_POOL_VALIDATION_TIMEOUT_S", "db.pool.validation.timeout.s", 5);
+        int statementCacheSize = getIntSetting("DB_STATEMENT_CACHE_SIZE", "db.statement.cache.size", 64);
+        return new ConnectionPool(url, info, poolSize, acquireTimeout, idleTimeout, validationInterval,
+                validationTimeout, statementCacheSize);
+    }
+
+    /**
+     * Results of {@link #cachedQuery} are kept for DB_QUERY_CACHE_TTL_MS, at most DB_QUERY_CACHE_SIZE of them.
+     * A size of 0 or less disables the cache.
+     */
+    private QueryCache createQueryCache() {
+        int size = getIntSetting("DB_QUERY_CACHE_SIZE", "db.query.cache.size", 100000);
+        if (size <= 0) {
+            return null;
+        }
+        return new QueryCache(size, getIntSetting("DB_QUERY_CACHE_TTL_MS", "db.query.cache.ttl.ms", 600000));
+    }
+
+    private void recordStatement(String name, String sql, Object[] params, long nanos, long rows, boolean error) {
+        stats.record(name, nanos, rows, error);
+        if (slowQueryLog != null && !error) {
+            slowQueryLog.check(name, sql, params, nanos, rows);
+        }
+    }
+
+    /**
+     * Adapts a statement written for PostgreSQL to the connected database before it is prepared.
+     */
+    protected String dialect(String sql) {
+        return sql;
+    }
+
+    public ConnectionPool getPool() {
+        return pool();
+    }
+
+    /**
+     * Returns the cached PreparedStatement registered under {@code name} on this connection, with the parameters
+     * bound. The statement belongs to the connection's cache and must not be closed.
+     */
+    private PreparedStatement prepare(Connection connection, String name, String sql, Object... params) throws SQLException {
+        PreparedStatement statement = connection.unwrap(StatementCache.class).prepare(name, dialect(sql));
+        for (int i = 0; i < params.length; i++) {
+            statement.setObject(i + 1, params[i]);
+        }
+        return statement;
+    }
+
+    protected <T> T query(String name, String sql, ResultSetHandler<T> handler, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        long[] rows = {0};
+        boolean error = true;
+        try (Connection connection = pool().getConnection()) {
+            PreparedStatement statement = prepare(connection, name, sql, params);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                T result = handler.handle(QueryStats.counting(resultSet, rows));
+                error = false;
+                return result;
+            }
+        } finally {
+            recordStatement(name, sql, params, System.nanoTime() - start, rows[0], error);
+        }
+    }
+
+    protected int update(String name, String sql, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean error = true;
+        try (Connection connection = pool().getConnection()) {
+            rows = prepare(connection, name, sql, params).executeUpdate();
+            error = false;
+            invalidateWrittenTable(sql);
+            return rows;
+        } finally {
+            recordStatement(name, sql, params, System.nanoTime() - start, rows, error);
+        }
+    }
+
+    /**
+     * Latency, row and error counts per logical statement name, including batch writers, COPY loads and cursors.
+     */
+    public QueryStats getQueryStats() {
+        return stats;
+    }
+
+    public void printQueryStats() {
+        stats.dump(System.err);
+    }
+
+    /**
+     * Runs an idempotent query through the {@link QueryCache}. {@code table} is the table the query reads; its
+     * entries are dropped whenever this Database commits a write to it. The result is shared with other callers
+     * and must not be modified. Returns null if the query fails.
+     */
+    public <T> T cachedQuery(String table, String sql, ResultSetHandler<T> handler, Object... params) {
+        try {
+            return cached(sql, table, sql, handler, params);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private <T> T cached(String name, String table, String sql, ResultSetHandler<T> handler, Object... params)
+            throws SQLException {
+        if (cache == null) {
+            return query(name, sql, handler, params);
+        }
+        return cache.get(cacheTable(table), sql, params, () -> query(name, sql, handler, params));
+    }
+
+    /**
+     * Drops the cached results read from {@code table}. Called automatically for writes made through this
+     * Database; call it after changing the table some other way.
+     */
+    public void invalidateCache(String table) {
+        if (cache != null) {
+            cache.invalidate(cacheTable(table));
+        }
+    }
+
+    /**
+     * The name cached results are filed under: lower case and without a schema, so that "Public.Regions" and
+     * "regions" refer to the same entries.
+     */
+    static String cacheTable(String table) {
+        return table.substring(table.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    private void invalidateWrittenTable(String sql) {
+        Matcher matcher = WRITTEN_TABLE.matcher(sql);
+        if (matcher.find()) {
+            invalidateCache(matcher.group(1));
+        }
+    }
+
+    public QueryCache getQueryCache() {
+        return cache;
+    }
+
+    public void printCacheStats() {
+        if (cache != null) {
+            cache.dump(System.err);
+        }
+    }
+
+    public Map<String, StatementCache.Usage> getStatementUsage() {
+        return pool().getStatementUsage();
+    }
+
+    public void printStatementUsage() {
+        System.err.println("statement\tprepared\treused");
+        getStatementUsage().forEach((name, usage) ->
+                System.err.println(name + "\t" + usage.getPrepared() + "\t" + usage.getReused()));
+    }
+
+    /**
+     * Returns the shared batch writer registered under {@code name}, creating it on first use.
+     */
+    public BatchWriter batchWriter(String name, String sql) {
+        return writers.computeIfAbsent(name, n -> new BatchWriter(n, dialect(sql), pool(),
+                getIntSetting("DB_BATCH_SIZE", "db.batch.size", 1000),
+                getIntSetting("DB_BATCH_FLUSH_MS", "db.batch.flush.ms", 1000),
+                getIntSetting("DB_COMMIT_INTERVAL", "db.commit.interval", 10000),
+                getFlushScheduler(), stats, () -> invalidateWrittenTable(sql)));
+    }
+
+    private synchronized ScheduledExecutorService getFlushScheduler() {
+        if (flushScheduler == null) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "batch-writer-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(this::closeWriters, "batch-writer-shutdown"));
+        }
+        return flushScheduler;
+    }
+
+    /**
+     * Sends and commits every pending row of every batch writer. Returns the rows that could not be written since
+     * the last flush.
+     */
+    public List<BatchWriter.Failure> flush() {
+        List<BatchWriter.Failure> failures = new ArrayList<>();
+        for (BatchWriter writer : writers.values()) {
+            writer.flushAndCommit();
+            failures.addAll(writer.takeFailures());
+        }
+        return failures;
+    }
+
+    /**
+     * Commits the rows buffered by the writer {@code name}, if it exists, so that a following read sees them.
+     */
+    protected void flushWriter(String name) {
+        BatchWriter writer = writers.get(name);
+        if (writer != null) {
+            writer.flushAndCommit();
+        }
+    }
+
+    private synchronized void closeWriters() {
+        for (BatchWriter writer : writers.values()) {
+            writer.close();
+        }
+        writers.clear();
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads the keys of {@code table} (one of {@link #PRELOADABLE_TABLES}) once, so that its ON CONFLICT DO NOTHING
+     * inserts skip rows that already exist without sending them. Tables listed in DB_PRELOAD_KEYS (or "all") are
+     * loaded on their first insert.
+     */
+    public KeySet preloadKeys(String table) {
+        return keySets.computeIfAbsent(table, t -> {
+            try (Stream<String> existing = streamKeys(t)) {
+                return new KeySet(t, existing);
+            }
+        });
+    }
+
+    private Stream<String> streamKeys(String table) {
+        switch (table) {
+            case "mgnify_asms":
+                return stream("SELECT assembly FROM mgnify_asms", rs -> rs.getString(1));
+            case "antismash_runs":
+                return stream("SELECT assembly FROM antismash_runs", rs -> rs.getString(1));
+            case "bigslice_gcf_membership":
+                return stream("SELECT gcf_id, bgc_id, threshold FROM bigslice_gcf_membership",
+                        rs -> membershipKey(rs.getString(1), rs.getString(2), rs.getInt(3)));
+            case "biomes":
+                return stream("SELECT id FROM biomes", rs -> rs.getString(1));
+            default:
+                throw new IllegalArgumentException("No key preload for table " + table);
+        }
+    }
+
+    private static String membershipKey(String gcfId, String bgcId, int threshold) {
+        return gcfId + "\t" + bgcId + "\t" + threshold;
+    }
+
+    /**
+     * Returns false if {@code key} is known to exist in {@code table}, so the insert can be skipped. Always true
+     * for tables whose keys are not preloaded.
+     */
+    private boolean isNewKey(String table, String key) {
+        KeySet keySet = keySets.get(table);
+        if (keySet == null) {
+            if (!preloadTables.contains(table)) {
+                return true;
+            }
+            keySet = preloadKeys(table);
+        }
+        return keySet.add(key);
+    }
+
+    public void insertAssemblies(List<Assembly> assemblyList) {
+        assemblyList = assemblyList.stream()
+                .filter(assembly -> isNewKey("mgnify_asms", assembly.getId()))
+                .collect(Collectors.toList());
+        if (assemblyList.isEmpty()) {
+            return;
+        }
+        String assemblySQL = "INSERT INTO mgnify_asms(assembly, sampleacc, submittedseqs, envmat, longitude, latitude, envbiome, " +
+                "collectdate, species, geoloc, biosample, hosttaxid, envfeat, downloadlink) " +
+                "VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,?) " +
+                "ON CONFLICT(assembly) DO NOTHING";
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+        try (Connection connection = pool().getConnection();
+             PreparedStatement pstmt = connection.prepareStatement(dialect(assemblySQL), Statement.RETURN_GENERATED_KEYS)) {
+
+            for(Assembly assembly : assemblyList) {
+                System.out.println("Inserting " + assembly.getId());
+                Sample sample = assembly.getSample();
+                Map<String, String> attributes = sample.getAttributes();
+
+                pstmt.setString(1, assembly.getId());
+                pstmt.setString(2, sample.getId());
+                String submittedNucleotideSequences = assembly.getAnalysisSummary().get("Submitted nucleotide sequences");
+                int sns = submittedNucleotideSequences == null || submittedNucleotideSequences.equals("null") ? -1 : Integer.parseInt(submittedNucleotideSequences);
+                pstmt.setInt(3, sns);
+                pstmt.setString(4, attributes.get("environmentMaterial"));
+                pstmt.setDouble(5, Double.parseDouble(attributes.get("longitude")));
+                pstmt.setDouble(6, Double.parseDouble(attributes.get("latitude")));
+                pstmt.setString(7, attributes.get("environmentBiome") );
+                java.util.Date collectionDate = attributes.get("collectionDate").equals("null") || attributes.get("collectionDate").isEmpty() ? null : dateFormat.parse(attributes.get("collectionDate"));
+                pstmt.setDate(8, collectionDate == null ? null : new Date(collectionDate.getTime()));
+                pstmt.setString(9, attributes.get("species"));
+                pstmt.setString(10, attributes.get("geoLocName"));
+                pstmt.setString(11, attributes.get("biosample"));
+                pstmt.setInt(12, Integer.parseInt(attributes.get("hostTaxID")));
+                pstmt.setString(13, attributes.get("environmentFeature"));
+                pstmt.setString(14, assembly.getDownloadLink());
+                pstmt.addBatch();
+            }
+
+            long start = System.nanoTime();
+            int[] result;
+            try {
+                result = pstmt.executeBatch();
+            } catch (SQLException e) {
+                stats.recordBatch("insertAssemblies", System.nanoTime() - start, assemblyList.size(), true);
+                throw e;
+            }
+            stats.recordBatch("insertAssemblies", System.nanoTime() - start, result.length, false);
+            invalidateCache("mgnify_asms");
+            System.out.println("Inserted " + result.length + " assemblies ");
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } catch (ParseException e) {
+            e.printStackTrace();
+        }
+
+        insertMetadata(assemblyList);
+
+    }
+
+    private void insertMetadata(List<Assembly> assemblyList) {
+        String metadataSQL = "INSERT INTO sample_metadata(sample, meta_key, meta_value) VALUES (?,?,?) " +
+                "ON CONFLICT(sample, meta_key, meta_value) DO NOTHING";
+
+        try (Connection connection = pool().getConnection();
+             PreparedStatement pstmt = connection.prepareStatement(dialect(metadataSQL), Statement.RETURN_GENERATED_KEYS)) {
+
+            for (Assembly assembly : assemblyList) {
+                Sample sample = assembly.getSample();
+                Map<String, String> metadata = sample.getMetadata();
+                for (String key : metadata.keySet()) {
+                    pstmt.setString(1, sample.getId());
+                    pstmt.setString(2, key);
+                    pstmt.setString(3, metadata.get(key));
+                    pstmt.addBatch();
+                }
+            }
+
+            long start = System.nanoTime();
+            int[] result;
+            try {
+                result = pstmt.executeBatch();
+            } catch (SQLException e) {
+                stats.recordBatch("insertMetadata", System.nanoTime() - start, 0, true);
+                throw e;
+            }
+            stats.recordBatch("insertMetadata", System.nanoTime() - start, result.length, false);
+            invalidateCache("sample_metadata");
+            System.out.println("Inserted " + result.length + " metadata fields");
+            pstmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String[] getNextInQueueRand() {
+        flushWriter("insertRun");
+        String sql = "SELECT * FROM mgnify_asms WHERE assembly IN (SELECT assembly FROM antismash_runs WHERE status IS NULL) ORDER BY random()LIMIT 1";
+//        String sql = "SELECT * FROM mgnify_asms WHERE assembly NOT IN (SELECT assembly FROM antismash_runs WHERE status != 'success') ORDER BY random()LIMIT 1";
+
+        try {
+            return query("getNextInQueueRand", sql, resultSet -> {
+                if (resultSet.next()) {
+                    String assemblyId = resultSet.getString(1);
+                    String link = resultSet.getString(14);
+                    return new String[]{assemblyId, link};
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public String getRunStatus(String assemblyId) {
+        flushWriter("insertRun");
+        String sql = "SELECT status FROM antismash_runs WHERE assembly = ?";
+        try {
+            return query("getRunStatus", sql, resultSet -> resultSet.next() ? resultSet.getString(1) : "", assemblyId);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return "";
+    }
+
+    public void updateRunStatus(String assemblyId, String status) {
+        flushWriter("insertRun");
+        String sql = "UPDATE antismash_runs SET run_timestamp = CURRENT_TIMESTAMP, status = ? WHERE assembly = ?";
+        System.out.println(sql + " [" + status + ", " + assemblyId + "]");
+
+        try {
+            update("updateRunStatus", sql, status, assemblyId);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void updateDetails(String assemblyId, String asVer, String pipeVer, String server, String resPath, String status) {
+        flushWriter("insertRun");
+        String sql = "UPDATE antismash_runs SET antismash_version = ?, pipeline_version = ?, run_server = ?, " +
+                "res_path = ?, status = ?, run_timestamp = CURRENT_TIMESTAMP WHERE assembly = ?";
+        try {
+            update("updateDetails", sql, asVer, pipeVer, server, resPath, status, assemblyId);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void insertRun(String assemblyId, String ASver, String pipeVer, String server, String path, String status) {
+        if (!isNewKey("antismash_runs", assemblyId)) {
+            return;
+        }
+        batchWriter("insertRun", "INSERT INTO antismash_runs (assembly, antismash_version, pipeline_version, run_timestamp, " +
+                "run_server, res_path, status) VALUES (?, ?, ?, CURRENT_TIMESTAMP, ?, ?, ?) " +
+                "ON CONFLICT(assembly) DO NOTHING")
+                .add(assemblyId, ASver, pipeVer, server, path, status);
+    }
+
+    public List<String> getAllAssemblyAccessions() {
+        try (Stream<String> assemblies = streamAllAssemblyAccessions()) {
+            return assemblies.collect(Collectors.toList());
+        }
+    }
+
+    public Stream<String> streamAllAssemblyAccessions() {
+        return stream("SELECT assembly FROM mgnify_asms", rs -> rs.getString(1));
+    }
+
+    public List<String> getNewFinishedRuns() {
+        flushWriter("insertRun");
+//        String sql = "SELECT assembly FROM antismash_runs WHERE status = 'success'";
+        String sql = "SELECT ar.assembly\n" +
+                "FROM antismash_runs AS ar\n" +
+                "         LEFT JOIN protoclusters AS pc ON ar.assembly = pc.assembly\n" +
+                "WHERE ar.status = 'success' AND pc.assembly IS NULL AND COALESCE(ar.res_path, '') NOT LIKE '/vol/%';";
+
+        try {
+            return query("getNewFinishedRuns", sql, resultSet -> {
+                List<String> assemblyAccessions = new ArrayList<>();
+                while (resultSet.next()) {
+                    assemblyAccessions.add(resultSet.getString(1));
+                }
+                return assemblyAccessions;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public List<String> getAllFinishedRuns() {
+        try (Stream<String> runs = streamAllFinishedRuns()) {
+            return runs.collect(Collectors.toList());
+        }
+    }
+
+    public Stream<String> streamAllFinishedRuns() {
+        flushWriter("insertRun");
+        return stream("SELECT assembly FROM antismash_runs WHERE status = 'success'", rs -> rs.getString(1));
+    }
+
+    public void closeConnection() {
+        closeWriters();
+        if (slowQueryLog != null) {
+            slowQueryLog.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        if (!stats.getEntries().isEmpty() && Boolean.parseBoolean(getSetting("DB_STATS_ON_CLOSE", "db.stats.on.close", "true"))) {
+            printQueryStats();
+            printCacheStats();
+        }
+        for (KeySet keySet : keySets.values()) {
+            if (keySet.getSkippedCount() > 0) {
+                System.err.println(keySet.getTable() + ": skipped " + keySet.getSkippedCount() + " rows with existing keys");
+            }
+        }
+    }
+
+    public void insertPC(String assembly, String contig, String region, int number, String category, String product,
+                         String contigEdge, String gbkFile) {
+        batchWriter("insertPC", "INSERT INTO protoclusters (assembly, contig, region, protocluster_num, " +
+                "category, product, contig_edge, gbk_file) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")
+                .add(assembly, contig, region, number, category, product, contigEdge, gbkFile);
+    }
+
+    public void insertClustering(String bgc, String bgcType, int familyNumber, double clusteringThreshold, String assembly) {
+        batchWriter("insertClustering", "INSERT INTO bigscape_clustering (bgc_name, bgc_type, family_number, " +
+                "clustering_threshold, assembly) VALUES (?, ?, ?, ?, ?)")
+                .add(bgc, bgcType, familyNumber, clusteringThreshold, assembly);
+    }
+    public void insertNetworkEdge(String clustername1, String clustername2, double rawDistance, double squaredSimilarity,
+                                  double jaccardIndex, double dssIndex, double adjacencyIndex, double rawDSSnonAnchor,
+                                  double rawDSSAnchor, int nonAnchorDomains, int anchorDoamins, String combinedGroup,
+                                  String sharedGroup, String bgcType, double clusteringThreshold) {
+        batchWriter("insertNetworkEdge", "INSERT INTO bigscape_networks (clustername1, clustername2, raw_distance, " +
+                "squared_similarity, jaccard_index, dss_index, adjacency_index, dss_non_anchor, raw_dss_anchor, " +
+                "non_anchor_domains, anchor_domains, combined_group, shared_group, bgc_type, clustering_threshold) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")
+                .add(clustername1, clustername2, rawDistance, squaredSimilarity, jaccardIndex, dssIndex, adjacencyIndex,
+                        rawDSSnonAnchor, rawDSSAnchor, nonAnchorDomains, anchorDoamins, combinedGroup, sharedGroup,
+                        bgcType, clusteringThreshold);
+    }
+
+    public List<String> getGCFFamily(String bgcName) {
+        String sql = "SELECT *\n" +
+                "FROM bigscape_clustering\n" +
+                "WHERE clustering_threshold = 0.3\n" +
+                "  AND family_number = (\n" +
+                "    SELECT family_number\n" +
+                "    FROM bigscape_clustering\n" +
+                "    WHERE bgc_name = ?\n" +
+                "      AND clustering_threshold = 0.3\n" +
+                "    LIMIT 1\n" +
+                ");";
+        try {
+            List<String> bgcs = cached("getGCFFamily", "bigscape_clustering", sql, resultSet -> {
+                List<String> family = new ArrayList<>();
+                while (resultSet.next()) {
+                    String bgcNameFam = resultSet.getString(1);
+                    family.add(bgcNameFam);
+                }
+                return family;
+            }, bgcName);
+            // the cached list is shared
+            return new ArrayList<>(bgcs);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return new ArrayList<>();
+    }
+
+    public String getGCFFamilyName(String bgcName) {
+        String sql = "SELECT family_number FROM bigscape_clustering " +
+                "WHERE bgc_name = ? " +
+                "AND clustering_threshold = 0.3;";
+        try {
+            return cached("getGCFFamilyName", "bigscape_clustering", sql,
+                    resultSet -> resultSet.next() ? resultSet.getString(1) : "", bgcName);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return "";
+    }
+
+    public void addBiome(GetBiomeTypes.Biome biome) {
+        if (!isNewKey("biomes", biome.getId())) {
+            return;
+        }
+        batchWriter("addBiome", "INSERT INTO biomes (id, samplescount, biomename, lineage, sampleslink, genomeslink, " +
+                "childrenlink, studieslink) VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT(id) DO NOTHING")
+                .add(biome.getId(), biome.getSamplesCount(), biome.getBiomeName(), biome.getLineage(),
+                        biome.getSamplesRelated(), biome.getGenomesRelated(), biome.getChildrenRelated(),
+                        biome.getStudiesRelated());
+    }
+
+    public CachedRowSet executeQuery(String sql) {
+        long start = System.nanoTime();
+        boolean error = true;
+        int rows = 0;
+        try (Connection connection = pool().getConnection();
+             PreparedStatement statement = connection.prepareStatement(dialect(sql));
+             ResultSet resultSet = statement.executeQuery()) {
+            CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+            rowSet.populate(resultSet);
+            rows = rowSet.size();
+            error = false;
+            return rowSet;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            recordStatement("executeQuery", sql, null, System.nanoTime() - start, rows, error);
+        }
+        return null;
+    }
+
+    public <T> T executeQuery(String sql, ResultSetHandler<T> handler) {
+        long start = System.nanoTime();
+        long[] rows = {0};
+        boolean error = true;
+        try (Connection connection = pool().getConnection();
+             PreparedStatement statement = connection.prepareStatement(dialect(sql));
+             ResultSet resultSet = statement.executeQuery()) {
+            T result = handler.handle(QueryStats.counting(resultSet, rows));
+            error = false;
+            return result;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            recordStatement("executeQuery", sql, null, System.nanoTime() - start, rows[0], error);
+        }
+        return null;
+    }
+
+    /**
+     * Runs the query through a server-side cursor and maps rows lazily. The caller must close the iterator unless
+     * it reads it to the end.
+     */
+    public <T> CursorIterator<T> cursor(String sql, int fetchSize, RowMapper<T> mapper, Object... params) throws SQLException {
+        return new CursorIterator<>(pool().getConnection(), stats, dialect(sql), fetchSize, mapper, params);
+    }
+
+    /**
+     * Lazy stream over the query's rows using the default fetch size. Close the stream (try-with-resources) to
+     * return the connection if it is not consumed completely.
+     */
+    public <T> Stream<T> stream(String sql, RowMapper<T> mapper, Object... params) {
+        return stream(sql, getIntSetting("DB_FETCH_SIZE", "db.fetch.size", 10000), mapper, params);
+    }
+
+    public <T> Stream<T> stream(String sql, int fetchSize, RowMapper<T> mapper, Object... params) {
+        try {
+            CursorIterator<T> iterator = cursor(sql, fetchSize, mapper, params);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                    .onClose(iterator::close);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return Stream.empty();
+    }
+
+    public void executeUpdate(String sql) {
+        long start = System.nanoTime();
+        boolean error = true;
+        int rows = 0;
+        try (Connection connection = pool().getConnection();
+             PreparedStatement statement = connection.prepareStatement(dialect(sql))) {
+            rows = statement.executeUpdate();
+            error = false;
+            invalidateWrittenTable(sql);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            recordStatement("executeUpdate", sql, null, System.nanoTime() - start, rows, error);
+        }
+    }
+
+    /**
+     * Runs {@code sql} with bound parameters on a statement cached per connection (keyed by the SQL text).
+     */
+    public <T> T executeQuery(String sql, ResultSetHandler<T> handler, Object... params) {
+        try {
+            return query(sql, sql, handler, params);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public int executeUpdate(String sql, Object... params) {
+        try {
+            return update(sql, sql, params);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    public abstract RowLoader copyLoader(String table, String... columns) throws SQLException;
+
+    public RowLoader protoclusterLoader() throws SQLException {
+        return copyLoader("protoclusters", "assembly", "contig", "region", "protocluster_num", "category", "product",
+                "contig_edge", "gbk_file");
+    }
+
+    public RowLoader clusteringLoader() throws SQLException {
+        return copyLoader("bigscape_clustering", "bgc_name", "bgc_type", "family_number", "clustering_threshold", "assembly");
+    }
+
+    public RowLoader networkEdgeLoader() throws SQLException {
+        return copyLoader("bigscape_networks", "clustername1", "clustername2", "raw_distance", "squared_similarity",
+                "jaccard_index", "dss_index", "adjacency_index", "dss_non_anchor", "raw_dss_anchor", "non_anchor_domains",
+                "anchor_domains", "combined_group", "shared_group", "bgc_type", "clustering_threshold");
+    }
+
+    public RowLoader regionLoader() throws SQLException {
+        return copyLoader("regions", "assembly", "contig_name", "contig_len", "product_categories", "anchor", "start",
+                "\"end\"", "contig_edge", "type", "products", "region_num");
+    }
+
+    /**
+     * Only loads bigslice_gcf_membership; unlike insertGCFMembership it does not update protoclusters.
+     */
+    public RowLoader gcfMembershipLoader() throws SQLException {
+        return copyLoader("bigslice_gcf_membership", "gcf_id", "bgc_id", "membership_value", "threshold");
+    }
+
+    /**
+     * Creates (or empties) a staging table for a bulk load.
+     */
+    public void prepareStagingTable(String table, String columnDefinitions) {
+        executeUpdate("CREATE TABLE IF NOT EXISTS " + table + " (" + columnDefinitions + ")");
+        executeUpdate("TRUNCATE TABLE " + table);
+    }
+
+    public void insertGCFMembership(String gcfId, String bgcId, String membershipValue, int threshold) {
+        if (isNewKey("bigslice_gcf_membership", membershipKey(gcfId, bgcId, threshold))) {
+            batchWriter("insertGCFMembership", "INSERT INTO bigslice_gcf_membership (gcf_id, bgc_id, membership_value, " +
+                    "threshold) VALUES (?, ?, ?, ?) ON CONFLICT DO NOTHING")
+                    .add(gcfId, bgcId, membershipValue, threshold);
+        }
+        batchWriter("updatePCGCF", "UPDATE protoclusters SET bigslice_gcf_id = ? WHERE bigslice_bgc_id = ?")
+                .add(gcfId, bgcId);
+    }
+
+//    public void insertRegion(String run, String contigName, int recordId, String products, String contigEdge, String regionNumber, String location) {
+//        String sql = "INSERT INTO regions (assembly, contigName, products, contig_edge, contigNumber, regionNumber, location) VALUES (" +
+//                run + ", " + "'" + contigName + "'" + ", " + "ARRAY"  + products.replaceAll("\"", "'") + ", " + contigEdge + ", " +
+//                recordId + ", " + regionNumber + ", " + location + ")" + " ON CONFLICT DO NOTHING";
+//        System.out.println(sql);
+//        try {
+//            PreparedStatement statement = connection.prepareStatement(sql);
+//            int i = statement.executeUpdate();
+//            statement.close();
+//        } catch (SQLException e) {
+//            e.printStackTrace();
+//        }
+//    }
+
+    public void insertRegion(String run, String contigName, int recordId, String products, String contigEdge, String regionNumber, String location) {
+        String[] productArray = products
+                .replaceAll("[\\[\\]\"]", "")
+                .split(",");
+        batchWriter("insertRegionLocation", "INSERT INTO regions (assembly, contig_name, products, contig_edge, " +
+                "contig_number, region_number, location) VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT DO NOTHING")
+                .add(run, contigName, productArray, Boolean.parseBoolean(contigEdge), recordId,
+                        Integer.parseInt(regionNumber), location);
+    }
+
+    public void insertRegion(String run, String recordName, int length, String productCategories, String anchor, int start, int end, boolean isContigEdge, String type, String products, int regionNum) {
+        String[] productArray = productCategories
+                .replaceAll("[\\[\\]\"]", "")
+                .split(",");
+        String[] productArray2 = products
+                .replaceAll("[\\[\\]\"]", "")
+                .split(",");
+        batchWriter("insertRegion", "INSERT INTO regions (assembly, contig_name, contig_len, product_categories, " +
+                "anchor, start, \"end\", contig_edge, type, products, region_num) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT DO NOTHING")
+                .add(run, recordName, length, productArray, anchor, start, end, isContigEdge, type, productArray2,
+                        regionNum);
+    }
+
+}
@@ -0,0 +1,54 @@
+package dbutil;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Keys already present in a table, used to drop rows on the client that an {@code ON CONFLICT DO NOTHING} insert
+ * would discard on the server. The set is exact rather than a Bloom filter: a false positive would silently drop a
+ * new row. Keys are added as rows are sent, so duplicates within one run are dropped as well. A key whose insert
+ * later fails stays in the set until the next run reloads it from the table.
+ */
+public class KeySet {
+
+    private final String table;
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+    private final LongAdder skipped = new LongAdder();
+
+    KeySet(String table, Stream<String> existing) {
+        this.table = table;
+        long start = System.nanoTime();
+        existing.forEach(keys::add);
+        System.err.println(String.format("Preloaded %d keys of %s in %.1f s", keys.size(), table,
+                (System.nanoTime() - start) / 1e9));
+    }
+
+    /**
+     * Returns true if {@code key} was not known yet, i.e. the row has to be sent.
+     */
+    public boolean add(String key) {
+        if (keys.add(key)) {
+            return true;
+        }
+        skipped.increment();
+        return false;
+    }
+
+    public boolean contains(String key) {
+        return keys.contains(key);
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+}
@@ -0,0 +1,50 @@
+package dbutil;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically renews the lease of a claimed antiSMASH run while it is being processed. If the JVM dies the
+ * renewals stop and {@link Database#reapExpiredLeases()} puts the run back in the queue.
+ */
+public class LeaseHeartbeat implements AutoCloseable {
+
+    private final Database database;
+    private final String assemblyId;
+    private final String workerId;
+    private final long leaseMillis;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean lost = false;
+
+    public LeaseHeartbeat(Database database, String assemblyId, String workerId, long leaseMillis) {
+        this.database = database;
+        this.assemblyId = assemblyId;
+        this.workerId = workerId;
+        this.leaseMillis = leaseMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-heartbeat-" + assemblyId);
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, leaseMillis / 3);
+        scheduler.scheduleAtFixedRate(this::beat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void beat() {
+        boolean renewed = database.renewLease(assemblyId, workerId, leaseMillis);
+        if (!renewed && !lost) {
+            System.err.println("Could not renew lease on " + assemblyId + " (worker " + workerId + ")");
+        }
+        lost = !renewed;
+    }
+
+    public boolean isLost() {
+        return lost;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,94 @@
+package dbutil;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Consumer;
+
+/**
+ * LISTENs on a channel on a dedicated pooled connection and hands every notification payload to a consumer. If the
+ * connection is lost it reconnects with a backoff and calls {@code onReconnect}, because notifications sent while
+ * nobody was listening are not delivered later.
+ */
+public class NotificationListener implements AutoCloseable {
+
+    private static final int POLL_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private final ConnectionPool pool;
+    private final String channel;
+    private final Consumer<String> consumer;
+    private final Runnable onReconnect;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    NotificationListener(ConnectionPool pool, String channel, Consumer<String> consumer, Runnable onReconnect) {
+        this.pool = pool;
+        this.channel = channel;
+        this.consumer = consumer;
+        this.onReconnect = onReconnect;
+        this.thread = new Thread(this::listen, "listen-" + channel);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void listen() {
+        long backoff = 1000;
+        boolean reconnect = false;
+        while (!closed) {
+            try (Connection connection = pool.getConnection()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                }
+                System.err.println("Listening on " + channel);
+                backoff = 1000;
+                if (reconnect) {
+                    onReconnect.run();
+                }
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (!closed) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_MILLIS);
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification notification : notifications) {
+                        try {
+                            consumer.accept(notification.getParameter());
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("UNLISTEN " + channel);
+                }
+            } catch (SQLException e) {
+                if (closed) {
+                    return;
+                }
+                System.err.println("Lost LISTEN connection on " + channel + ", retrying in " + backoff + " ms");
+                e.printStackTrace();
+                reconnect = true;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join(POLL_MILLIS * 2L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package dbutil;
+
+import org.postgresql.PGConnection;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports a table or query to a tab separated file with {@code COPY ... TO STDOUT}, the same format as
+ * {@code \copy ... TO ... WITH (FORMAT CSV, DELIMITER E'\t', HEADER true)}. When an integer key column is given, the
+ * key range is split into {@code streams} slices that are copied over separate connections in parallel. All slices
+ * read the same exported snapshot, so the file is consistent even while the pipeline keeps writing. Files ending in
+ * .gz are gzip compressed; every slice is compressed on its own thread and the members are concatenated.
+ */
+public class ParallelCopyExporter {
+
+    private static final String COPY_OPTIONS = "FORMAT csv, DELIMITER E'\\t'";
+
+    private final ConnectionPool pool;
+    private final QueryStats stats;
+    private final int streams;
+
+    ParallelCopyExporter(ConnectionPool pool, QueryStats stats, int streams) {
+        this.pool = pool;
+        this.stats = stats;
+        // one connection holds the snapshot
+        this.streams = Math.max(1, Math.min(streams, pool.getMaxSize() - 1));
+    }
+
+    /**
+     * Exports {@code source}, a table name or a SELECT query, to {@code output} with a header line. Without a
+     * {@code keyColumn} the export runs as a single stream. Returns the number of rows written.
+     */
+    public long export(String source, String keyColumn, Path output) throws SQLException, IOException {
+        String query = isQuery(source) ? source : "SELECT * FROM " + source;
+        boolean compress = output.getFileName().toString().endsWith(".gz");
+        long start = System.nanoTime();
+
+        try (Connection snapshotConnection = pool.getConnection();
+             Statement statement = snapshotConnection.createStatement()) {
+            snapshotConnection.setAutoCommit(false);
+            statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            String snapshot;
+            try (ResultSet resultSet = statement.executeQuery("SELECT pg_export_snapshot()")) {
+                resultSet.next();
+                snapshot = resultSet.getString(1);
+            }
+
+            List<String> slices = slices(statement, query, keyColumn);
+            List<Path> parts = new ArrayList<>();
+            for (int i = 0; i < slices.size(); i++) {
+                parts.add(output.resolveSibling(output.getFileName() + ".part" + i));
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(slices.size());
+            long rows = 0;
+            try {
+                List<Future<Long>> futures = new ArrayList<>();
+                for (int i = 0; i < slices.size(); i++) {
+                    int slice = i;
+                    futures.add(executor.submit(() -> copySlice(slice, snapshot, slices.get(slice), parts.get(slice), compress)));
+                }
+                for (Future<Long> future : futures) {
+                    rows += future.get();
+                }
+                writeHeader(statement, query, output, compress);
+                try (FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    for (Path part : parts) {
+                        try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                            long position = 0;
+                            long size = in.size();
+                            while (position < size) {
+                                position += in.transferTo(position, size - position, out);
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while exporting " + source, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new SQLException("Exporting " + source + " failed", e.getCause());
+            } finally {
+                executor.shutdownNow();
+                for (Path part : parts) {
+                    Files.deleteIfExists(part);
+                }
+            }
+            System.out.println(String.format("Exported %d rows of %s to %s in %.1f s over %d streams", rows, source,
+                    output, (System.nanoTime() - start) / 1e9, slices.size()));
+            return rows;
+        }
+    }
+
+    private static boolean isQuery(String source) {
+        String head = source.trim().toUpperCase();
+        return head.startsWith("SELECT") || head.startsWith("WITH") || head.startsWith("(");
+    }
+
+    /**
+     * Splits the key range into contiguous slices. Rows with a NULL key go to the first slice.
+     */
+    private List<String> slices(Statement statement, String query, String keyColumn) throws SQLException {
+        List<String> slices = new ArrayList<>();
+        if (keyColumn == null || streams == 1) {
+            slices.add(query);
+            return slices;
+        }
+        long min;
+        long max;
+        try (ResultSet resultSet = statement.executeQuery("SELECT min(" + keyColumn + "), max(" + keyColumn + ") FROM (" +
+                query + ") AS q")) {
+            resultSet.next();
+            min = resultSet.getLong(1);
+            if (resultSet.wasNull()) {
+                slices.add(query);
+                return slices;
+            }
+            max = resultSet.getLong(2);
+        }
+        long step = Math.max(1, (max - min) / streams + 1);
+        for (long lower = min; lower <= max; lower += step) {
+            String condition = keyColumn + " >= " + lower + " AND " + keyColumn + " < " + (lower + step);
+            if (lower == min) {
+                condition = "(" + condition + ") OR " + keyColumn + " IS NULL";
+            }
+            slices.add("SELECT * FROM (" + query + ") AS q WHERE " + condition);
+        }
+        return slices;
+    }
+
+    private long copySlice(int slice, String snapshot, String query, Path part, boolean compress)
+            throws SQLException, IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        boolean error = true;
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             OutputStream out = open(part, compress)) {
+            connection.setAutoCommit(false);
+            statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            statement.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+            rows = connection.unwrap(PGConnection.class).getCopyAPI()
+                    .copyOut("COPY (" + query + ") TO STDOUT WITH (" + COPY_OPTIONS + ")", out);
+            error = false;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            stats.recordBatch("export", nanos, rows, error);
+            System.out.println(String.format("slice %d: %d rows in %.1f s (%.0f rows/s)", slice, rows, nanos / 1e9,
+                    rows / Math.max(nanos / 1e9, 1e-9)));
+        }
+        return rows;
+    }
+
+    private void writeHeader(Statement statement, String query, Path output, boolean compress)
+            throws SQLException, IOException {
+        StringJoiner header = new StringJoiner("\t", "", "\n");
+        try (ResultSet resultSet = statement.executeQuery("SELECT * FROM (" + query + ") AS q LIMIT 0")) {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                header.add(metaData.getColumnName(i));
+            }
+        }
+        try (OutputStream out = open(output, compress)) {
+            out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static OutputStream open(Path path, boolean compress) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 20);
+        return compress ? new GZIPOutputStream(out, 1 << 16) : out;
+    }
+
+    /**
+     * Opens a file written by the exporter (or by {@code \copy}), decompressing it if it ends in .gz.
+     */
+    public static BufferedReader openReader(String path) throws IOException {
+        InputStream in = Files.newInputStream(Path.of(path));
+        if (path.endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+}
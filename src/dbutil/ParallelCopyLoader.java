@@ -0,0 +1,332 @@
+package dbutil;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads a delimited file into a table over several COPY streams at once. One COPY is bound to a single backend
+ * process, so large loads are CPU bound on the server; here the lines are hash-partitioned on a key column into
+ * {@code streams} partitions, each partition is copied over its own connection into a shared staging table, and the
+ * staging table then replaces the target table in a single transaction. Readers of the target see either the old or
+ * the new contents, never a partial load. The staging table gets the target's indexes and key constraints only after
+ * the rows are in, and they take over the original names in the swap.
+ * <p>
+ * The file must hold one record per line; the COPY options are passed through unchanged, so a file that loads with
+ * {@code \copy ... WITH (options)} loads the same way here.
+ */
+public class ParallelCopyLoader {
+
+    private static final int CHUNK_CHARS = 1 << 16;
+    private static final byte[] END = new byte[0];
+    // CREATE [UNIQUE] INDEX name ON [ONLY] table USING ..., as printed by pg_get_indexdef
+    private static final Pattern INDEX_DEFINITION = Pattern.compile(
+            "CREATE (UNIQUE )?INDEX .+? ON (?:ONLY )?\\S+ (USING .*)", Pattern.DOTALL);
+
+    private final ConnectionPool pool;
+    private final QueryStats stats;
+    private final String table;
+    private final String[] columns;
+    private final String copyOptions;
+    private final int streams;
+    private final int keyColumn;
+
+    ParallelCopyLoader(ConnectionPool pool, QueryStats stats, String table, String copyOptions, int streams,
+                       int keyColumn, String... columns) {
+        this.pool = pool;
+        this.stats = stats;
+        this.table = table;
+        this.columns = columns;
+        this.copyOptions = copyOptions;
+        this.streams = Math.max(1, Math.min(streams, pool.getMaxSize()));
+        this.keyColumn = keyColumn;
+    }
+
+    /**
+     * Loads {@code file} and swaps it in for the target table. Returns the number of rows loaded. On failure the
+     * target table is left untouched.
+     */
+    public long load(Path file, boolean header) throws SQLException, IOException {
+        String staging = table + "_staging";
+        execute("DROP TABLE IF EXISTS " + staging,
+                "CREATE TABLE " + staging + " (LIKE " + table + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+
+        List<BlockingQueue<byte[]>> queues = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            queues.add(new ArrayBlockingQueue<>(16));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(streams);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            int stream = i;
+            futures.add(executor.submit(() -> copyStream(stream, staging, queues.get(stream))));
+        }
+
+        long total = 0;
+        boolean loaded = false;
+        List<String[]> renames;
+        try {
+            partition(file, header, queues, futures);
+            for (Future<Long> future : futures) {
+                total += future.get();
+            }
+            renames = buildIndexes(staging);
+            loaded = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading " + table, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Loading " + table + " failed", e.getCause());
+        } finally {
+            if (!loaded) {
+                for (Future<Long> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            executor.shutdownNow();
+            if (!loaded) {
+                execute("DROP TABLE IF EXISTS " + staging);
+            }
+        }
+
+        swap(staging, renames);
+        System.out.println("Loaded " + total + " rows into " + table + " over " + streams + " streams");
+        return total;
+    }
+
+    private void partition(Path file, boolean header, List<BlockingQueue<byte[]>> queues, List<Future<Long>> futures)
+            throws IOException, InterruptedException, ExecutionException {
+        StringBuilder[] chunks = new StringBuilder[streams];
+        for (int i = 0; i < streams; i++) {
+            chunks[i] = new StringBuilder(CHUNK_CHARS * 2);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = header ? reader.readLine() : null;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int partition = Math.floorMod(key(line).hashCode(), streams);
+                StringBuilder chunk = chunks[partition];
+                chunk.append(line).append('\n');
+                if (chunk.length() >= CHUNK_CHARS) {
+                    send(queues.get(partition), futures.get(partition), chunk);
+                }
+            }
+        }
+        for (int i = 0; i < streams; i++) {
+            if (chunks[i].length() > 0) {
+                send(queues.get(i), futures.get(i), chunks[i]);
+            }
+            offer(queues.get(i), futures.get(i), END);
+        }
+    }
+
+    private String key(String line) {
+        int start = 0;
+        for (int i = 0; i < keyColumn; i++) {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0) {
+                return line;
+            }
+        }
+        int end = line.indexOf('\t', start);
+        return end < 0 ? line.substring(start) : line.substring(start, end);
+    }
+
+    private void send(BlockingQueue<byte[]> queue, Future<Long> stream, StringBuilder chunk)
+            throws InterruptedException, ExecutionException {
+        byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+        chunk.setLength(0);
+        offer(queue, stream, bytes);
+    }
+
+    /**
+     * Hands a chunk to its stream. Fails fast if that stream has already died instead of blocking on its full queue.
+     */
+    private void offer(BlockingQueue<byte[]> queue, Future<Long> stream, byte[] bytes)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(bytes, 1, TimeUnit.SECONDS)) {
+            if (stream.isDone()) {
+                stream.get();
+                throw new ExecutionException(new SQLException("COPY stream for " + table + " stopped early"));
+            }
+        }
+    }
+
+    private long copyStream(int stream, String staging, BlockingQueue<byte[]> queue) throws SQLException, InterruptedException {
+        String sql = "COPY " + staging + " (" + String.join(", ", columns) + ") FROM STDIN WITH (" + copyOptions + ")";
+        long start = System.nanoTime();
+        long bytes = 0;
+        long rows = 0;
+        boolean error = true;
+        try (Connection connection = pool.getConnection()) {
+            CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+            try {
+                byte[] chunk;
+                while ((chunk = queue.take()) != END) {
+                    copyIn.writeToCopy(chunk, 0, chunk.length);
+                    bytes += chunk.length;
+                }
+                rows = copyIn.endCopy();
+                error = false;
+            } finally {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            }
+        } finally {
+            long nanos = System.nanoTime() - start;
+            stats.recordBatch("parallelCopy:" + table, nanos, rows, error);
+            System.out.println(String.format("%s stream %d: %d rows, %.1f MB in %.1f s (%.0f rows/s)", table, stream,
+                    rows, bytes / 1e6, nanos / 1e9, rows / Math.max(nanos / 1e9, 1e-9)));
+        }
+        return rows;
+    }
+
+    /**
+     * Creates the target's key constraints and indexes on the loaded staging table, under temporary names since
+     * index names are unique per schema. Returns {kind, temporary name, original name} for every one of them.
+     */
+    private List<String[]> buildIndexes(String staging) throws SQLException {
+        List<String[]> renames = new ArrayList<>();
+        List<String> statements = new ArrayList<>();
+        long start = System.nanoTime();
+        try (Connection connection = pool.getConnection()) {
+            try (PreparedStatement query = connection.prepareStatement(
+                    "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint " +
+                            "WHERE conrelid = ?::regclass AND contype IN ('p', 'u', 'x')")) {
+                query.setString(1, table);
+                try (ResultSet resultSet = query.executeQuery()) {
+                    while (resultSet.next()) {
+                        String name = resultSet.getString(1);
+                        String temporary = stagingName(name);
+                        statements.add("ALTER TABLE " + staging + " ADD CONSTRAINT " + quote(temporary) + " " +
+                                resultSet.getString(2));
+                        renames.add(new String[]{"constraint", temporary, name});
+                    }
+                }
+            }
+            try (PreparedStatement query = connection.prepareStatement(
+                    "SELECT i.relname, pg_get_indexdef(x.indexrelid) FROM pg_index AS x " +
+                            "JOIN pg_class AS i ON i.oid = x.indexrelid " +
+                            "WHERE x.indrelid = ?::regclass AND NOT EXISTS (SELECT 1 FROM pg_constraint AS c " +
+                            "WHERE c.conindid = x.indexrelid AND c.conrelid = x.indrelid AND c.contype IN ('p', 'u', 'x'))")) {
+                query.setString(1, table);
+                try (ResultSet resultSet = query.executeQuery()) {
+                    while (resultSet.next()) {
+                        String name = resultSet.getString(1);
+                        Matcher definition = INDEX_DEFINITION.matcher(resultSet.getString(2));
+                        if (!definition.matches()) {
+                            throw new SQLException("Cannot rebuild index " + name + ": " + resultSet.getString(2));
+                        }
+                        String temporary = stagingName(name);
+                        statements.add("CREATE " + (definition.group(1) == null ? "" : definition.group(1)) + "INDEX " +
+                                quote(temporary) + " ON " + staging + " " + definition.group(2));
+                        renames.add(new String[]{"index", temporary, name});
+                    }
+                }
+            }
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : statements) {
+                    statement.execute(sql);
+                }
+            }
+        }
+        System.out.println(String.format("%s: built %d indexes in %.1f s", table, statements.size(),
+                (System.nanoTime() - start) / 1e9));
+        return renames;
+    }
+
+    private static String stagingName(String name) {
+        // identifiers are cut at 63 bytes, so leave room for the suffix
+        return (name.length() > 54 ? name.substring(0, 54) : name) + "_staging";
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Replaces the target table by the staging table and gives the staging table's indexes and key constraints the
+     * names of the ones they replace. Sequences owned by the old table are handed over to the new one (so SERIAL
+     * defaults keep working) and moved past the loaded ids.
+     */
+    private void swap(String staging, List<String[]> renames) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            try {
+                statement.execute("LOCK TABLE " + table + " IN ACCESS EXCLUSIVE MODE");
+                List<String[]> sequences = new ArrayList<>();
+                try (PreparedStatement query = connection.prepareStatement(
+                        "SELECT attname, pg_get_serial_sequence(?, attname) FROM pg_attribute " +
+                                "WHERE attrelid = ?::regclass AND attnum > 0 AND NOT attisdropped")) {
+                    query.setString(1, table);
+                    query.setString(2, table);
+                    try (ResultSet resultSet = query.executeQuery()) {
+                        while (resultSet.next()) {
+                            if (resultSet.getString(2) != null) {
+                                sequences.add(new String[]{resultSet.getString(1), resultSet.getString(2)});
+                            }
+                        }
+                    }
+                }
+                for (String[] sequence : sequences) {
+                    String column = "\"" + sequence[0] + "\"";
+                    statement.execute("ALTER SEQUENCE " + sequence[1] + " OWNED BY " + staging + "." + column);
+                    statement.execute("SELECT setval('" + sequence[1] + "', COALESCE((SELECT max(" + column + ") FROM " +
+                            staging + "), 0) + 1, false)");
+                }
+                statement.execute("DROP TABLE " + table);
+                statement.execute("ALTER TABLE " + staging + " RENAME TO " + table);
+                for (String[] rename : renames) {
+                    if (rename[0].equals("constraint")) {
+                        statement.execute("ALTER TABLE " + table + " RENAME CONSTRAINT " + quote(rename[1]) + " TO " +
+                                quote(rename[2]));
+                    } else {
+                        statement.execute("ALTER INDEX " + quote(rename[1]) + " RENAME TO " + quote(rename[2]));
+                    }
+                }
+                statement.execute("ANALYZE " + table);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private void execute(String... statements) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package dbutil;
+
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded read-through cache for the results of idempotent queries. Entries are keyed by the SQL text and bind
+ * values, tagged with the table they read, evicted least recently used once {@code maxEntries} is exceeded, and
+ * expire after {@code ttlMillis}. {@link #invalidate(String)} drops every entry of a table; the database calls it
+ * when writes to that table are committed in this process. Writes by other processes are only seen after the TTL.
+ * <p>
+ * Results are shared between callers and must not be modified. A query that fails is not cached.
+ */
+public class QueryCache {
+
+    public interface Loader<T> {
+        T load() throws SQLException;
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<Key, Entry> entries;
+    private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+    public QueryCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > QueryCache.this.maxEntries) {
+                    counters(eldest.getKey().table).evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached result of {@code sql} with {@code params}, or runs {@code loader} and caches its result
+     * (including null). Concurrent misses on the same key may each run the loader.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String table, String sql, Object[] params, Loader<T> loader) throws SQLException {
+        Key key = new Key(table, sql, params);
+        Counters c = counters(table);
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.loaded < ttlNanos) {
+                    c.hits.increment();
+                    return (T) entry.value;
+                }
+                entries.remove(key);
+                c.expirations.increment();
+            }
+        }
+        c.misses.increment();
+        long generation = c.generation;
+        T value = loader.load();
+        synchronized (entries) {
+            // a write committed while loading: the result may already be stale
+            if (generation == c.generation) {
+                entries.put(key, new Entry(value, now));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Drops every cached result read from {@code table}, including results of queries that are still running.
+     */
+    public void invalidate(String table) {
+        Counters c = counters(table);
+        synchronized (entries) {
+            c.generation++;
+            c.invalidations.increment();
+            Iterator<Key> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().table.equals(table)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            for (String table : counters.keySet()) {
+                counters(table).generation++;
+            }
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Counters counters(String table) {
+        return counters.computeIfAbsent(table, t -> new Counters());
+    }
+
+    /**
+     * Prints hits, misses, hit rate, evictions, expirations and invalidations per table as tab separated lines.
+     */
+    public void dump(PrintStream out) {
+        out.println("table\thits\tmisses\thit_rate\tevictions\texpirations\tinvalidations");
+        counters.forEach((table, c) -> {
+            long hits = c.hits.sum();
+            long misses = c.misses.sum();
+            out.println(String.format("%s\t%d\t%d\t%.3f\t%d\t%d\t%d", table, hits, misses,
+                    hits + misses == 0 ? 0.0 : (double) hits / (hits + misses), c.evictions.sum(),
+                    c.expirations.sum(), c.invalidations.sum()));
+        });
+    }
+
+    private static class Counters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+        final LongAdder expirations = new LongAdder();
+        final LongAdder invalidations = new LongAdder();
+        // guarded by the entries lock for writes
+        volatile long generation = 0;
+    }
+
+    private static class Entry {
+        final Object value;
+        final long loaded;
+
+        Entry(Object value, long loaded) {
+            this.value = value;
+            this.loaded = loaded;
+        }
+    }
+
+    private static class Key {
+        final String table;
+        final String sql;
+        final List<Object> params;
+        final int hash;
+
+        Key(String table, String sql, Object[] params) {
+            this.table = table;
+            this.sql = sql;
+            this.params = Arrays.asList(params.clone());
+            this.hash = Objects.hash(table, sql, this.params);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return table.equals(other.table) && sql.equals(other.sql) && params.equals(other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package dbutil;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and row-count statistics per logical statement name. Latencies go into a log-scale histogram with four
+ * buckets per power of two (about 19% resolution) from 1 microsecond up to about 2 hours, which is precise enough to
+ * compare p50/p95/p99 between statements without keeping individual samples.
+ */
+public class QueryStats {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int NUM_BUCKETS = 33 * SUB_BUCKETS;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public void record(String name, long nanos, long rows, boolean error) {
+        Entry entry = entries.computeIfAbsent(name, n -> new Entry());
+        entry.calls.increment();
+        entry.rows.add(rows);
+        entry.totalNanos.add(nanos);
+        if (error) {
+            entry.errors.increment();
+        }
+        entry.latency.incrementAndGet(bucket(nanos / 1000));
+    }
+
+    public void recordBatch(String name, long nanos, long batchSize, boolean error) {
+        record(name, nanos, batchSize, error);
+        Entry entry = entries.get(name);
+        entry.batches.increment();
+        entry.batchedRows.add(batchSize);
+    }
+
+    /**
+     * Wraps {@code resultSet} so that every successful {@code next()} increments {@code rowCounter[0]}.
+     */
+    public static ResultSet counting(ResultSet resultSet, long[] rowCounter) {
+        return (ResultSet) Proxy.newProxyInstance(QueryStats.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    try {
+                        Object result = method.invoke(resultSet, args);
+                        if ("next".equals(method.getName()) && Boolean.TRUE.equals(result)) {
+                            rowCounter[0]++;
+                        }
+                        return result;
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private static int bucket(long micros) {
+        if (micros < 1) {
+            return 0;
+        }
+        int log2 = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = log2 >= 2 ? (int) ((micros >> (log2 - 2)) & (SUB_BUCKETS - 1)) : (int) ((micros << (2 - log2)) & (SUB_BUCKETS - 1));
+        return Math.min(NUM_BUCKETS - 1, log2 * SUB_BUCKETS + sub);
+    }
+
+    private static double bucketUpperMillis(int bucket) {
+        int log2 = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        return Math.pow(2, log2) * (1 + (sub + 1) / (double) SUB_BUCKETS) / 1000.0;
+    }
+
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    public void reset() {
+        entries.clear();
+    }
+
+    public void dump(PrintStream out) {
+        out.println("statement\tcalls\terrors\trows\tbatches\tavg_batch\ttotal_ms\tp50_ms\tp95_ms\tp99_ms\tmax_ms");
+        List<Map.Entry<String, Entry>> sorted = new ArrayList<>(entries.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue().totalNanos.sum(), a.getValue().totalNanos.sum()));
+        for (Map.Entry<String, Entry> e : sorted) {
+            Entry entry = e.getValue();
+            long batches = entry.batches.sum();
+            out.println(e.getKey() + "\t" + entry.calls.sum() + "\t" + entry.errors.sum() + "\t" + entry.rows.sum() + "\t" +
+                    batches + "\t" + (batches == 0 ? "" : String.format("%.1f", entry.batchedRows.sum() / (double) batches)) + "\t" +
+                    String.format("%.1f", entry.totalNanos.sum() / 1e6) + "\t" +
+                    String.format("%.2f", entry.percentileMillis(0.50)) + "\t" +
+                    String.format("%.2f", entry.percentileMillis(0.95)) + "\t" +
+                    String.format("%.2f", entry.percentileMillis(0.99)) + "\t" +
+                    String.format("%.2f", entry.percentileMillis(1.0)));
+        }
+    }
+
+    public static class Entry {
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder batches = new LongAdder();
+        final LongAdder batchedRows = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLongArray latency = new AtomicLongArray(NUM_BUCKETS);
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        /**
+         * Upper bound of the histogram bucket holding the given quantile, in milliseconds.
+         */
+        public double percentileMillis(double quantile) {
+            long total = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                total += latency.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += latency.get(i);
+                if (seen >= target) {
+                    return bucketUpperMillis(i);
+                }
+            }
+            return bucketUpperMillis(NUM_BUCKETS - 1);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package dbutil;
+
+import java.sql.SQLException;
+
+/**
+ * Bulk loader for one table: rows are added in the order of the columns it was created with and become visible
+ * when {@link #commit()} is called. Closing a loader that was not committed discards its rows, so a load that
+ * fails part way in a try-with-resources block leaves the table as it was.
+ */
+public interface RowLoader extends AutoCloseable {
+
+    void addRow(Object... values) throws SQLException;
+
+    long getRowCount();
+
+    String getTable();
+
+    /**
+     * Sends the remaining rows and commits them.
+     */
+    void commit() throws SQLException;
+
+    /**
+     * Discards the rows added so far.
+     */
+    void cancel();
+
+    /**
+     * Discards the rows unless {@link #commit()} was called.
+     */
+    @Override
+    void close();
+}
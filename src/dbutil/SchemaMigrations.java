@@ -0,0 +1,298 @@
+package dbutil;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Versioned schema changes. Each migration is applied once and recorded in schema_migrations; the statements are
+ * idempotent as well, so a schema that was partly set up by hand is brought up to date without errors. A session
+ * advisory lock keeps concurrently starting workers from applying the same migration twice; {@link #tryApply()}
+ * gives up instead of waiting for it, so a worker never blocks behind another process's index builds.
+ * <p>
+ * Index migrations are not transactional because they use CREATE INDEX CONCURRENTLY, which does not block the
+ * writers of a live pipeline. An index left invalid by an interrupted build is dropped and rebuilt.
+ */
+public class SchemaMigrations {
+
+    private static final long LOCK_KEY = 0x6267636174L;
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS (\\w+) ON (\\w+)", Pattern.CASE_INSENSITIVE);
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "run lease columns", true,
+                    "ALTER TABLE antismash_runs ADD COLUMN IF NOT EXISTS worker_id VARCHAR(255), " +
+                            "ADD COLUMN IF NOT EXISTS lease_expires TIMESTAMP, " +
+                            "ADD COLUMN IF NOT EXISTS attempts INT NOT NULL DEFAULT 0"),
+            // claimRuns / getNextInQueueRand only look at queued runs, the finished-run scans only need the assembly
+            new Migration(2, "antismash_runs indexes", false,
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS antismash_runs_queued_idx ON antismash_runs (assembly) " +
+                            "WHERE status IS NULL",
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS antismash_runs_status_idx ON antismash_runs (status) " +
+                            "INCLUDE (assembly)",
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS antismash_runs_lease_idx ON antismash_runs (lease_expires) " +
+                            "WHERE lease_expires IS NOT NULL"),
+            new Migration(3, "protoclusters indexes", false,
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS protoclusters_assembly_idx ON protoclusters (assembly)",
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS protoclusters_bigslice_bgc_id_idx ON protoclusters (bigslice_bgc_id)"),
+            // getGCFFamilyName looks up (bgc_name, threshold); getGCFFamily then scans one family at that threshold
+            new Migration(4, "bigscape_clustering indexes", false,
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS bigscape_clustering_bgc_threshold_idx " +
+                            "ON bigscape_clustering (bgc_name, clustering_threshold) INCLUDE (family_number)",
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS bigscape_clustering_threshold_family_idx " +
+                            "ON bigscape_clustering (clustering_threshold, family_number) INCLUDE (bgc_name)"),
+            new Migration(5, "regions indexes", false,
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS regions_bigslice_gcf_id_idx ON regions (bigslice_gcf_id) " +
+                            "INCLUDE (assembly, products)"),
+            new Migration(6, "BiG-SLiCE output tables", true,
+                    "CREATE TABLE IF NOT EXISTS regions_new (\n" +
+                            "    region_id SERIAL PRIMARY KEY,\n" +
+                            "    assembly VARCHAR(255),\n" +
+                            "    contig_name VARCHAR(255),\n" +
+                            "    contig_len INT,\n" +
+                            "    product_categories TEXT[],\n" +
+                            "    anchor VARCHAR(255),\n" +
+                            "    start INT,\n" +
+                            "    \"end\" INT,\n" +
+                            "    contig_edge BOOLEAN,\n" +
+                            "    type VARCHAR(255),\n" +
+                            "    products TEXT[],\n" +
+                            "    region_num INT,\n" +
+                            "    bigslice_region_id INT,\n" +
+                            "    bigslice_gcf_id INT,\n" +
+                            "    longest_biome VARCHAR(255),\n" +
+                            "    membership_value DOUBLE PRECISION,\n" +
+                            "    gcf_from_search BOOLEAN\n" +
+                            ")",
+                    "CREATE TABLE IF NOT EXISTS bigslice_gcf_new (\n" +
+                            "    gcf_id INT,\n" +
+                            "    num_core_regions INT,\n" +
+                            "    core_products TEXT,\n" +
+                            "    core_biomes TEXT,\n" +
+                            "    num_all_regions INT,\n" +
+                            "    all_products TEXT,\n" +
+                            "    all_biomes TEXT\n" +
+                            ")",
+                    "CREATE TABLE IF NOT EXISTS bigslice_gcf_membership_new (\n" +
+                            "    gcf_id INT,\n" +
+                            "    bgc_id INT,\n" +
+                            "    region_id INT,\n" +
+                            "    membership_value DOUBLE PRECISION,\n" +
+                            "    threshold DOUBLE PRECISION,\n" +
+                            "    gcf_from_search BOOLEAN\n" +
+                            ")"),
+            new Migration(7, "notify when a run finishes", true,
+                    "CREATE OR REPLACE FUNCTION notify_antismash_run_success() RETURNS trigger AS $$\n" +
+                            "BEGIN\n" +
+                            "    IF TG_OP = 'INSERT' OR OLD.status IS DISTINCT FROM NEW.status THEN\n" +
+                            "        PERFORM pg_notify('" + Database.RUN_SUCCESS_CHANNEL + "', NEW.assembly);\n" +
+                            "    END IF;\n" +
+                            "    RETURN NULL;\n" +
+                            "END;\n" +
+                            "$$ LANGUAGE plpgsql",
+                    "DROP TRIGGER IF EXISTS antismash_run_success ON antismash_runs",
+                    "CREATE TRIGGER antismash_run_success AFTER INSERT OR UPDATE OF status ON antismash_runs " +
+                            "FOR EACH ROW WHEN (NEW.status = 'success') EXECUTE FUNCTION notify_antismash_run_success()")
+    );
+
+    private final ConnectionPool pool;
+
+    public SchemaMigrations(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Applies every migration that is not recorded in schema_migrations yet, in version order. Stops at the first
+     * failing migration so later ones never run against an incomplete schema. Returns the number applied.
+     */
+    public int apply() throws SQLException {
+        return apply(getLatestVersion(), true);
+    }
+
+    /**
+     * Like {@link #apply()}, but returns -1 right away if another process holds the migration lock.
+     */
+    public int tryApply() throws SQLException {
+        return apply(getLatestVersion(), false);
+    }
+
+    /**
+     * Applies the pending migrations up to and including {@code maxVersion}. With {@code wait} false, returns -1
+     * without applying anything if another process holds the migration lock.
+     */
+    public int apply(int maxVersion, boolean wait) throws SQLException {
+        int applied = 0;
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            if (wait) {
+                statement.execute("SELECT pg_advisory_lock(" + LOCK_KEY + ")");
+            } else {
+                try (ResultSet locked = statement.executeQuery("SELECT pg_try_advisory_lock(" + LOCK_KEY + ")")) {
+                    if (!locked.next() || !locked.getBoolean(1)) {
+                        return -1;
+                    }
+                }
+            }
+            try {
+                statement.execute("CREATE TABLE IF NOT EXISTS schema_migrations (version INT PRIMARY KEY, " +
+                        "description TEXT, applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+                Set<Integer> done = appliedVersions(connection);
+                for (Migration migration : MIGRATIONS) {
+                    if (done.contains(migration.version) || migration.version > maxVersion) {
+                        continue;
+                    }
+                    apply(connection, migration);
+                    System.err.println("Applied schema migration " + migration.version + ": " + migration.description);
+                    applied++;
+                }
+            } finally {
+                statement.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+            }
+        }
+        return applied;
+    }
+
+    private Set<Integer> appliedVersions(Connection connection) throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT version FROM schema_migrations")) {
+            while (resultSet.next()) {
+                versions.add(resultSet.getInt(1));
+            }
+        }
+        return versions;
+    }
+
+    private void apply(Connection connection, Migration migration) throws SQLException {
+        connection.setAutoCommit(!migration.transactional);
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : migration.statements) {
+                if (!migration.transactional) {
+                    dropInvalidIndex(connection, sql);
+                }
+                statement.execute(sql);
+            }
+            try (PreparedStatement record = connection.prepareStatement(
+                    "INSERT INTO schema_migrations (version, description) VALUES (?, ?) ON CONFLICT DO NOTHING")) {
+                record.setInt(1, migration.version);
+                record.setString(2, migration.description);
+                record.executeUpdate();
+            }
+            if (migration.transactional) {
+                connection.commit();
+            }
+        } catch (SQLException e) {
+            if (migration.transactional) {
+                connection.rollback();
+            }
+            throw new SQLException("Schema migration " + migration.version + " (" + migration.description + ") failed", e);
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private void dropInvalidIndex(Connection connection, String sql) throws SQLException {
+        Matcher matcher = CREATE_INDEX.matcher(sql);
+        if (!matcher.find() || isValidIndex(connection, matcher.group(1)) != Boolean.FALSE) {
+            return;
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP INDEX CONCURRENTLY IF EXISTS " + matcher.group(1));
+        }
+    }
+
+    /**
+     * Returns null if the index does not exist.
+     */
+    private Boolean isValidIndex(Connection connection, String index) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT i.indisvalid FROM pg_index AS i JOIN pg_class AS c ON c.oid = i.indexrelid " +
+                        "WHERE c.relname = ? AND pg_catalog.pg_table_is_visible(c.oid)")) {
+            statement.setString(1, index);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getBoolean(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Prints the indexes the migrations define that are missing or invalid, and the non-unique indexes of the
+     * current schema that have not been scanned since the statistics were last reset.
+     */
+    public void reportIndexes(PrintStream out) throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            List<String> missing = new ArrayList<>();
+            for (Migration migration : MIGRATIONS) {
+                for (String sql : migration.statements) {
+                    Matcher matcher = CREATE_INDEX.matcher(sql);
+                    if (!matcher.find()) {
+                        continue;
+                    }
+                    Boolean valid = isValidIndex(connection, matcher.group(1));
+                    if (valid == null) {
+                        missing.add(matcher.group(1) + " on " + matcher.group(2));
+                    } else if (!valid) {
+                        missing.add(matcher.group(1) + " on " + matcher.group(2) + " (invalid)");
+                    }
+                }
+            }
+            out.println("Missing indexes: " + (missing.isEmpty() ? "none" : ""));
+            for (String index : missing) {
+                out.println("  " + index);
+            }
+
+            String sql = "SELECT s.relname, s.indexrelname, pg_size_pretty(pg_relation_size(s.indexrelid)) " +
+                    "FROM pg_stat_user_indexes AS s JOIN pg_index AS i ON i.indexrelid = s.indexrelid " +
+                    "WHERE s.idx_scan = 0 AND NOT i.indisunique AND s.schemaname = current_schema() " +
+                    "ORDER BY pg_relation_size(s.indexrelid) DESC";
+            out.println("Unused indexes (no scans since statistics reset):");
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(sql)) {
+                while (resultSet.next()) {
+                    out.println("  " + resultSet.getString(2) + " on " + resultSet.getString(1) + ", " + resultSet.getString(3));
+                }
+            }
+        }
+    }
+
+    /**
+     * True if the run lease columns added by migration 1 exist, without taking the migration lock.
+     */
+    public boolean hasRunLeaseColumns() throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT count(*) FROM information_schema.columns WHERE table_schema = current_schema() " +
+                             "AND table_name = 'antismash_runs' AND column_name IN ('worker_id', 'lease_expires', 'attempts')");
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() && resultSet.getInt(1) == 3;
+        }
+    }
+
+    public static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final boolean transactional;
+        final String[] statements;
+
+        Migration(int version, String description, boolean transactional, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.transactional = transactional;
+            this.statements = statements;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package dbutil;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Logs statements that take longer than a threshold together with their bind values and a plan, captured on a
+ * background thread. Plain SELECTs are re-run under {@code EXPLAIN (ANALYZE, BUFFERS)} inside a transaction that is
+ * rolled back. Everything else (writes, data-modifying WITH, row locks, sequence calls) only gets a plain
+ * {@code EXPLAIN}, since even a rolled-back re-run would take row locks and advance sequences. Each distinct
+ * statement text is explained at most once per cooldown period, and the log file is rotated when it grows past
+ * {@code maxBytes}.
+ */
+public class SlowQueryLog {
+
+    private static final Pattern SIDE_EFFECTS = Pattern.compile(
+            "\\bFOR\\s+(UPDATE|NO\\s+KEY\\s+UPDATE|SHARE|KEY\\s+SHARE)\\b|\\bINTO\\b|\\b(NEXTVAL|SETVAL)\\s*\\(",
+            Pattern.CASE_INSENSITIVE);
+
+    private final ConnectionPool pool;
+    private final long thresholdNanos;
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final long cooldownMillis;
+    private final Map<String, Long> lastExplained = new ConcurrentHashMap<>();
+    private final ExecutorService explainer;
+
+    public SlowQueryLog(ConnectionPool pool, long thresholdMillis, String file, long maxBytes, int maxFiles,
+                        long cooldownMillis) {
+        this.pool = pool;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.file = Paths.get(file);
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.cooldownMillis = cooldownMillis;
+        this.explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(100), r -> {
+            Thread t = new Thread(r, "slow-query-explain");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    public boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    /**
+     * Records the statement if it exceeded the threshold. Returns immediately; the plan is captured asynchronously.
+     */
+    public void check(String name, String sql, Object[] params, long nanos, long rows) {
+        if (!isSlow(nanos)) {
+            return;
+        }
+        boolean explain = isExplainable(sql) && claimExplain(sql);
+        Object[] values = params == null ? new Object[0] : params.clone();
+        try {
+            explainer.execute(() -> write(name, sql, values, nanos, rows, explain ? explain(sql, values) : null));
+        } catch (RejectedExecutionException ignored) {}
+    }
+
+    private boolean claimExplain(String sql) {
+        long now = System.currentTimeMillis();
+        boolean[] claimed = {false};
+        lastExplained.compute(sql, (s, previous) -> {
+            if (previous == null || now - previous >= cooldownMillis) {
+                claimed[0] = true;
+                return now;
+            }
+            return previous;
+        });
+        return claimed[0];
+    }
+
+    private static boolean isExplainable(String sql) {
+        String head = sql.trim().toUpperCase();
+        return head.startsWith("SELECT") || head.startsWith("WITH") || head.startsWith("INSERT")
+                || head.startsWith("UPDATE") || head.startsWith("DELETE");
+    }
+
+    /**
+     * True for statements that can be executed again without side effects: a SELECT that neither locks rows,
+     * creates a table nor touches a sequence.
+     */
+    static boolean isSafeToAnalyze(String sql) {
+        return sql.trim().toUpperCase().startsWith("SELECT") && !SIDE_EFFECTS.matcher(sql).find();
+    }
+
+    private String explain(String sql, Object[] params) {
+        String statementText = sql.trim();
+        if (statementText.endsWith(";")) {
+            statementText = statementText.substring(0, statementText.length() - 1);
+        }
+        String explain = isSafeToAnalyze(statementText) ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ";
+        StringBuilder plan = new StringBuilder();
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(explain + statementText)) {
+                for (int i = 0; i < params.length; i++) {
+                    statement.setObject(i + 1, params[i]);
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        plan.append(resultSet.getString(1)).append('\n');
+                    }
+                }
+            } finally {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            plan.append("EXPLAIN failed: ").append(e.getMessage()).append('\n');
+        }
+        return plan.toString();
+    }
+
+    private synchronized void write(String name, String sql, Object[] params, long nanos, long rows, String plan) {
+        StringBuilder entry = new StringBuilder();
+        entry.append("# ").append(LocalDateTime.now()).append(' ').append(name)
+                .append(String.format(" %.1f ms", nanos / 1e6)).append(", ").append(rows).append(" rows\n");
+        entry.append(sql.trim()).append('\n');
+        if (params.length > 0) {
+            entry.append("-- params: ").append(Arrays.deepToString(params)).append('\n');
+        }
+        if (plan != null) {
+            entry.append(plan);
+        }
+        entry.append('\n');
+        try {
+            rotateIfNeeded();
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(entry.toString());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void rotateIfNeeded() throws IOException {
+        if (!Files.exists(file) || Files.size(file) < maxBytes) {
+            return;
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path source = i == 1 ? file : rotated(i - 1);
+            if (Files.exists(source)) {
+                Files.move(source, rotated(i), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles <= 1) {
+            Files.delete(file);
+        }
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    public void close() {
+        explainer.shutdown();
+        try {
+            explainer.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
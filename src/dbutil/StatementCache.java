@@ -0,0 +1,104 @@
+package dbutil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named PreparedStatements kept open for the lifetime of one pooled connection. Reusing the same statement object
+ * lets the driver switch to a server-side prepared plan (after {@code prepareThreshold} executions) instead of
+ * parsing and planning the SQL text on every call. Only used by the thread currently holding the connection.
+ * Statements obtained here must not be closed by the caller.
+ */
+public class StatementCache {
+
+    /**
+     * Usage is counted per statement name for at most this many names; ad-hoc statements are named by their SQL
+     * text, so any beyond that are counted together under {@link #OTHER_STATEMENTS}.
+     */
+    static final int MAX_USAGE_NAMES = 500;
+    static final String OTHER_STATEMENTS = "(other)";
+
+    private final Connection connection;
+    private final ConcurrentMap<String, Usage> usage;
+    private final Map<String, CachedStatement> statements;
+
+    StatementCache(Connection connection, int maxStatements, ConcurrentMap<String, Usage> usage) {
+        this.connection = connection;
+        this.usage = usage;
+        this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() > maxStatements) {
+                    closeQuietly(eldest.getValue().statement);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public PreparedStatement prepare(String name, String sql) throws SQLException {
+        Usage u = usage.get(name);
+        if (u == null) {
+            u = usage.computeIfAbsent(usage.size() < MAX_USAGE_NAMES ? name : OTHER_STATEMENTS, n -> new Usage());
+        }
+        CachedStatement cached = statements.get(name);
+        if (cached != null && cached.sql.equals(sql) && !cached.statement.isClosed()) {
+            u.reused.increment();
+            cached.statement.clearParameters();
+            return cached.statement;
+        }
+        if (cached != null) {
+            closeQuietly(cached.statement);
+        }
+        PreparedStatement statement = connection.prepareStatement(sql);
+        statements.put(name, new CachedStatement(sql, statement));
+        u.prepared.increment();
+        return statement;
+    }
+
+    void close() {
+        for (CachedStatement cached : statements.values()) {
+            closeQuietly(cached.statement);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {}
+    }
+
+    private static class CachedStatement {
+        final String sql;
+        final PreparedStatement statement;
+
+        CachedStatement(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * Pool-wide counters per statement name: how often a statement had to be prepared and how often a cached one
+     * was reused.
+     */
+    public static class Usage {
+        final LongAdder prepared = new LongAdder();
+        final LongAdder reused = new LongAdder();
+
+        public long getPrepared() {
+            return prepared.sum();
+        }
+
+        public long getReused() {
+            return reused.sum();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package jsonutil;
+
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event-driven reading of JSON documents that are too large, or too short-lived, to be worth a {@link
+ * javax.json.JsonObject} tree.
+ */
+public class JsonStreams {
+
+    /**
+     * Receives the scalars of a walked value with their path: the keys leading to them joined by '/', with '#' for
+     * array elements, e.g. {@code attributes/analysis-summary/#/key}. Paths are relative to the walked value.
+     */
+    public interface Handler {
+        void value(String path, JsonValue value);
+
+        /**
+         * Called when the object or array at {@code path} ends.
+         */
+        default void end(String path) {
+        }
+    }
+
+    /**
+     * Walks the value that starts with {@code event}, the parser's current event, and leaves the parser on its last
+     * event. Every scalar goes to {@code handler} and every event is copied to {@code mirror}; both may be null,
+     * which skips the value.
+     */
+    public static void walk(JsonParser parser, JsonParser.Event event, Handler handler, JsonGenerator mirror) {
+        List<String> path = new ArrayList<>();
+        while (true) {
+            switch (event) {
+                case START_OBJECT:
+                    if (mirror != null) {
+                        mirror.writeStartObject();
+                    }
+                    path.add("");
+                    break;
+                case START_ARRAY:
+                    if (mirror != null) {
+                        mirror.writeStartArray();
+                    }
+                    path.add("#");
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    if (mirror != null) {
+                        mirror.writeEnd();
+                    }
+                    path.remove(path.size() - 1);
+                    if (handler != null) {
+                        handler.end(String.join("/", path));
+                    }
+                    break;
+                case KEY_NAME:
+                    if (mirror != null) {
+                        mirror.writeKey(parser.getString());
+                    }
+                    path.set(path.size() - 1, parser.getString());
+                    break;
+                default:
+                    JsonValue value = parser.getValue();
+                    if (mirror != null) {
+                        mirror.write(value);
+                    }
+                    if (handler != null) {
+                        handler.value(String.join("/", path), value);
+                    }
+            }
+            if (path.isEmpty()) {
+                return;
+            }
+            event = parser.next();
+        }
+    }
+}
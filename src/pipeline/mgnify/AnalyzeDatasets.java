@@ -17,10 +17,10 @@ import java.util.concurrent.*;
 
 public class AnalyzeDatasets {
 
-//    public final static Database database = new Database();
-    public final static Database database = new Database(false);
+    public final static Database database = new Database();
     public static int N_THREADS = 1;
     public static final int DOWNLOAD_THREADS = 1;
+    public static final long LEASE_MILLIS = 10 * 60 * 1000L;
     private static String assembliesFile;
     private static String analysisDir;
     private static String server;
@@ -172,40 +172,51 @@ public class AnalyzeDatasets {
 //        ThreadPoolExecutor executorAS = new ThreadPoolExecutor(N_THREADS, N_THREADS, 0L, TimeUnit.MILLISECONDS,
 //                new ArrayBlockingQueue<>(N_THREADS));
 
+        String workerId = Database.defaultWorkerId(server);
+
         while(true) {
-            String[] nextInQueue = database.getNextInQueueRand();
-            String assemblyId = nextInQueue[0];
-            String link = nextInQueue[1];
-
-            String runStatus = database.getRunStatus(assemblyId);
-            String queueString = "in queue " + server;
-            if(queueString.equals(runStatus)) {
-                continue;
+            for(String[] reaped : database.reapExpiredLeases()) {
+                System.out.println("reclaimed expired lease on " + reaped[0] + " -> " + reaped[1]);
             }
 
-            database.updateRunStatus(assemblyId, "in queue " + server);
+            List<String[]> claimed = database.claimRuns(server, workerId, N_THREADS, LEASE_MILLIS);
+            if(claimed.isEmpty()) {
+                break;
+            }
 
-            JsonObject assemblyObject = APICrawler.getJsonObjectFromURL(link);
+            List<Future<?>> batch = new ArrayList<>();
+            for(String[] nextInQueue : claimed) {
+                String assemblyId = nextInQueue[0];
+                String link = nextInQueue[1];
 
-            Map<String, List<String>> selfLinksMap = new HashMap<>();
-            parsePage(labels, assemblyObject, selfLinksMap);
+                JsonObject assemblyObject = APICrawler.getJsonObjectFromURL(link);
 
-            CountDownLatch latch = new CountDownLatch(1);
+                Map<String, List<String>> selfLinksMap = new HashMap<>();
+                parsePage(labels, assemblyObject, selfLinksMap);
 
-            AssemblyDownloader assemblyDownloader = downloadLinks(selfLinksMap, analysisDir, assemblyId, latch);
-            AntismashRunner antismashRunner = runAntismash(analysisDir, assemblyId, latch, server);
+                CountDownLatch latch = new CountDownLatch(1);
 
-            System.out.println("submitting jobs for " + assemblyId );
-            downloader.submit(assemblyDownloader);
-            executorAS.submit(antismashRunner);
+                AssemblyDownloader assemblyDownloader = downloadLinks(selfLinksMap, analysisDir, assemblyId, latch);
+                AntismashRunner antismashRunner = runAntismash(analysisDir, assemblyId, latch, server);
+                antismashRunner.setLease(workerId, LEASE_MILLIS);
 
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                System.out.println("submitting jobs for " + assemblyId );
+                downloader.submit(assemblyDownloader);
+                batch.add(executorAS.submit(antismashRunner));
+            }
+
+            // finish the leased batch before claiming more, so leases are not held by queued work
+            for(Future<?> future : batch) {
+                try {
+                    future.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
             }
         }
 
+        downloader.shutdown();
+        executorAS.shutdown();
     }
 
     private static AssemblyDownloader downloadLinks(Map<String, List<String>> selfLinksMap, String analysisDir,
@@ -215,12 +226,12 @@ public class AnalyzeDatasets {
     }
 
     private static AntismashRunner runAntismash(String analysisDir, String assemblyId, CountDownLatch latch, String server) {
-        AntismashRunner asRunner = new AntismashRunner(analysisDir, assemblyId, 1, latch, server);
+        AntismashRunner asRunner = new AntismashRunner(database, analysisDir, assemblyId, 1, latch, server);
         return asRunner;
     }
 
     private static AntismashRunner runAntismash(String analysisDir, String assemblyId, CountDownLatch latch, String server, String condaEnv, String condaPath, int nThreads) {
-        AntismashRunner asRunner = new AntismashRunner(analysisDir, assemblyId, nThreads, latch, server, condaEnv, condaPath);
+        AntismashRunner asRunner = new AntismashRunner(database, analysisDir, assemblyId, nThreads, latch, server, condaEnv, condaPath);
         return asRunner;
     }
 
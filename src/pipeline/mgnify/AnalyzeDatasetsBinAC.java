@@ -17,7 +17,7 @@ import java.util.concurrent.TimeUnit;
 
 public class AnalyzeDatasetsBinAC {
 
-    public final static Database database = new Database(false);
+    public final static Database database = new Database();
     public static final int N_THREADS = 1;
     public static final int DOWNLOAD_THREADS = 1;
 
@@ -59,19 +59,17 @@ public class AnalyzeDatasetsBinAC {
         ExecutorService executorAS = Executors.newFixedThreadPool(N_THREADS);
         ExecutorService downloader = Executors.newFixedThreadPool(DOWNLOAD_THREADS);
 
-        String[] nextInQueue = database.getNextInQueueRand();
+        String workerId = Database.defaultWorkerId(server);
+        database.reapExpiredLeases();
+        List<String[]> claimed = database.claimRuns(server, workerId, 1, AnalyzeDatasets.LEASE_MILLIS);
+        if(claimed.isEmpty()) {
+            System.exit(0);
+        }
+        String[] nextInQueue = claimed.get(0);
         System.out.println("next in queue: " + Arrays.toString(nextInQueue));
         String assemblyId = nextInQueue[0];
         String link = nextInQueue[1];
 
-        String runStatus = database.getRunStatus(assemblyId);
-        String queueString = "in queue " + server;
-        if(queueString.equals(runStatus)) {
-            System.exit(0);
-        }
-
-        database.updateRunStatus(assemblyId, "in queue " + server);
-
         JsonObject assemblyObject = APICrawler.getJsonObjectFromURL(link);
 
         Map<String, List<String>> selfLinksMap = new HashMap<>();
@@ -81,6 +79,7 @@ public class AnalyzeDatasetsBinAC {
 
         AssemblyDownloader assemblyDownloader = downloadLinks(selfLinksMap, analysisDir, assemblyId, latch);
         AntismashRunner antismashRunner = runAntismash(analysisDir, assemblyId, latch, server);
+        antismashRunner.setLease(workerId, AnalyzeDatasets.LEASE_MILLIS);
 
         System.out.println("submitting jobs for " + assemblyId);
         downloader.submit(assemblyDownloader);
@@ -128,7 +127,7 @@ public class AnalyzeDatasetsBinAC {
     }
 
     private static AntismashRunner runAntismash(String analysisDir, String assemblyId, CountDownLatch latch, String server) {
-        AntismashRunner asRunner = new AntismashRunner(analysisDir, assemblyId, 1, latch, server);
+        AntismashRunner asRunner = new AntismashRunner(database, analysisDir, assemblyId, 1, latch, server);
         return asRunner;
     }
 
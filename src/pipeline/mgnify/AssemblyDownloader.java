@@ -27,7 +27,12 @@ public class AssemblyDownloader implements Runnable{
 
     @Override
     public void run() {
-        this.downloadLinks();
+        try {
+            this.downloadLinks();
+        } finally {
+            // the antiSMASH runner waits for this even if the download failed
+            latch.countDown();
+        }
     }
 
     private void downloadLinks() {
@@ -68,8 +73,6 @@ public class AssemblyDownloader implements Runnable{
 //        }
 
 //        database.updateRunStatus(id, "downloaded");
-
-        latch.countDown();
     }
 
     private void modifyFile(String filePath, String dataset) {
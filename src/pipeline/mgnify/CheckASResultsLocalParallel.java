@@ -1,13 +1,17 @@
 package pipeline.mgnify;
 
+import dbutil.AsyncSink;
+import dbutil.BatchWriter;
 import dbutil.Database;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class CheckASResultsLocalParallel {
 
@@ -16,11 +20,33 @@ public class CheckASResultsLocalParallel {
 
     public static void main(String[] args) {
         String analysisDir = args[0];
-        crawlDir(analysisDir);
-//        database.closeConnection();
+        // checker threads only enqueue; the sink's writer thread does the inserts
+        AsyncSink<RunRecord> runSink = new AsyncSink<>("antismash_runs", 10000, 1000,
+                CheckASResultsLocalParallel::insertRuns);
+        try (runSink) {
+            crawlDir(analysisDir, runSink);
+        }
+        for (RunRecord failed : runSink.takeFailures()) {
+            System.err.println("Could not record " + failed.assembly + "\t" + failed.status);
+        }
+        database.closeConnection();
+    }
+
+    /**
+     * Inserts and commits one batch of runs, so the sink's writer thread waits for the database.
+     */
+    private static void insertRuns(List<RunRecord> batch) throws SQLException {
+        for (RunRecord r : batch) {
+            database.insertRun(r.assembly, "7.0.0beta2", "0.1", "binAC", r.resPath, r.status);
+        }
+        List<BatchWriter.Failure> failures = database.flush();
+        if (!failures.isEmpty()) {
+            throw new SQLException(failures.size() + " of " + batch.size() + " runs failed",
+                    failures.get(0).getError());
+        }
     }
 
-    private static void crawlDir(String analysisDir) {
+    private static void crawlDir(String analysisDir, AsyncSink<RunRecord> runSink) {
 
         List<String> allFinishedRuns = database.getAllFinishedRuns();
 
@@ -33,19 +59,26 @@ public class CheckASResultsLocalParallel {
             if(allFinishedRuns.contains(dataset)) {
                 continue;
             }
-            DatasetChecker checker = new DatasetChecker(dataset);
+            DatasetChecker checker = new DatasetChecker(dataset, runSink);
             executor.submit(checker);
         }
 
         executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
     }
 
     static class DatasetChecker implements Runnable {
 
         private final File dataset;
+        private final AsyncSink<RunRecord> runSink;
 
-        public DatasetChecker(File dataset) {
+        public DatasetChecker(File dataset, AsyncSink<RunRecord> runSink) {
             this.dataset = dataset;
+            this.runSink = runSink;
         }
 
         @Override
@@ -53,9 +86,14 @@ public class CheckASResultsLocalParallel {
             if(!dataset.isDirectory())
                 return;
             File ASlog = new File(dataset.getAbsolutePath() + File.separator + "antismash/antismash_log.txt");
-            if(!ASlog.exists()) {
-                database.insertRun(dataset.getName(), "7.0.0beta2", "0.1", "binAC", dataset.getAbsolutePath() +
-                        File.separator + "antismash", "no file");
+            try {
+                if(!ASlog.exists()) {
+                    runSink.put(new RunRecord(dataset.getName(), dataset.getAbsolutePath() +
+                            File.separator + "antismash", "no file"));
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return;
             }
             try(BufferedReader br = new BufferedReader(new FileReader(ASlog))) {
@@ -66,12 +104,12 @@ public class CheckASResultsLocalParallel {
                     lastLine = line;
                 }
                 if(lastLine.contains("antiSMASH status: SUCCESS")) {
-                    database.insertRun(dataset.getName(), "7.0.0beta2", "0.1", "binAC", dataset.getAbsolutePath() +
-                            File.separator + "antismash", "success");
+                    runSink.put(new RunRecord(dataset.getName(), dataset.getAbsolutePath() +
+                            File.separator + "antismash", "success"));
 //                    System.out.println(dataset.getName() + "\t" + "success");
                 } else if(lastLine.startsWith("INFO") || lastLine.startsWith("ERROR")) {
-                    database.insertRun(dataset.getName(), "7.0.0beta2", "0.1", "binAC", dataset.getAbsolutePath() +
-                            File.separator + "antismash", "incomplete");
+                    runSink.put(new RunRecord(dataset.getName(), dataset.getAbsolutePath() +
+                            File.separator + "antismash", "incomplete"));
                 }
                 else {
                     System.out.println(dataset + "\t" + lastLine);
@@ -82,4 +120,16 @@ public class CheckASResultsLocalParallel {
         }
     }
 
+    static class RunRecord {
+        final String assembly;
+        final String resPath;
+        final String status;
+
+        RunRecord(String assembly, String resPath, String status) {
+            this.assembly = assembly;
+            this.resPath = resPath;
+            this.status = status;
+        }
+    }
+
 }
@@ -1,13 +1,17 @@
 package pipeline.mgnify;
 
 
+import dbutil.Database;
+
 import java.io.*;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.*;
 
 public class CreateBigSliceTables {
 
     /**
-     * SQL COMMANDS:
+     * SQL COMMANDS (the tables are also created by schema migration 6 in dbutil.SchemaMigrations):
      *
      CREATE TABLE regions_new (
      region_id SERIAL PRIMARY KEY,
@@ -84,6 +88,23 @@ public class CreateBigSliceTables {
         addIncompleteBGCs(bigsliceSearch);
 
         writeTables(regionsTable, bigsliceGcfTable, bigsliceGcfMembershipTable);
+        loadTables(regionsTable, bigsliceGcfTable, bigsliceGcfMembershipTable);
+    }
+
+    /**
+     * Replaces the manual \copy steps above: loads the written tables over parallel COPY streams and swaps them in.
+     */
+    private static void loadTables(String regionsTable, String bigsliceGcfTable, String bigsliceGcfMembershipTable) {
+        Database database = new Database();
+        try {
+            database.regionsNewLoader().load(Paths.get(regionsTable), true);
+            database.bigsliceGcfNewLoader().load(Paths.get(bigsliceGcfTable), true);
+            database.bigsliceGcfMembershipNewLoader().load(Paths.get(bigsliceGcfMembershipTable), true);
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+        } finally {
+            database.closeConnection();
+        }
     }
 
     private static void writeTables(String regionsTable, String bigsliceGcfTable, String bigsliceGcfMembershipTable) {
@@ -1,19 +1,21 @@
 package pipeline.mgnify;
 
+import dbutil.AtlasDatabase;
 import dbutil.Database;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.sql.Array;
-import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class CreateGCFTable {
 
 
-    static final Database database = new Database();
+    static final AtlasDatabase database = Database.open();
 
     public static void main(String[] args) {
 
@@ -42,31 +44,31 @@ public class CreateGCFTable {
                 Map<String, Integer> productCount = new HashMap<>();
                 Map<String, Integer> biomeCount = new HashMap<>();
 
-                ResultSet regions = database.executeQuery("SELECT * FROM regions WHERE bigslice_gcf_id = " + gcfId);
+                try (Stream<RegionProducts> regionStream = database.stream(
+                        "SELECT assembly, products FROM regions WHERE bigslice_gcf_id = ?",
+                        rs -> new RegionProducts(rs.getString(1), rs.getArray(2)), gcfId)) {
+                    Iterator<RegionProducts> regions = regionStream.iterator();
+                    while(regions.hasNext()) {
+                        RegionProducts region = regions.next();
+                        regCount++;
+                        String assembly = region.assembly;
 
-                while(regions.next()) {
-                    regCount++;
-                    String assembly = regions.getString(2);
-                    Array products = regions.getArray(11);
-
-                    String[][] productArray = (String[][]) products.getArray();
-                    for (String[] productRow : productArray) {
-                        for (String product : productRow) {
+                        for (String product : region.products) {
                             productCount.putIfAbsent(product, 0);
                             productCount.put(product, productCount.get(product) + 1);
                         }
-                    }
 
-                    database.executeQuery(
-                            "SELECT longest_biome FROM assembly2longestbiome WHERE assembly = '" + assembly + "'",
-                            rs -> {
-                                if (rs.next()) {
-                                    String longestBiomeString = rs.getString(1);
-                                    biomeCount.putIfAbsent(longestBiomeString, 0);
-                                    biomeCount.put(longestBiomeString, biomeCount.get(longestBiomeString) + 1);
-                                }
-                                return null;
-                            });
+                        database.executeQuery(
+                                "SELECT longest_biome FROM assembly2longestbiome WHERE assembly = ?",
+                                rs -> {
+                                    if (rs.next()) {
+                                        String longestBiomeString = rs.getString(1);
+                                        biomeCount.putIfAbsent(longestBiomeString, 0);
+                                        biomeCount.put(longestBiomeString, biomeCount.get(longestBiomeString) + 1);
+                                    }
+                                    return null;
+                                }, assembly);
+                    }
                 }
 
                 Map<String, Integer> pcSorted = sortMap(productCount);
@@ -92,6 +94,29 @@ public class CreateGCFTable {
         }
     }
 
+    static class RegionProducts {
+        final String assembly;
+        final List<String> products = new ArrayList<>();
+
+        /**
+         * PostgreSQL returns the products as String[][], the embedded database as a flat Object[].
+         */
+        RegionProducts(String assembly, Array products) throws SQLException {
+            this.assembly = assembly;
+            flatten((Object[]) products.getArray(), this.products);
+        }
+
+        private static void flatten(Object[] array, List<String> out) {
+            for (Object element : array) {
+                if (element instanceof Object[]) {
+                    flatten((Object[]) element, out);
+                } else if (element != null) {
+                    out.add(element.toString());
+                }
+            }
+        }
+    }
+
     private static Map<String, Integer> sortMap(Map<String, Integer> map) {
         List<Map.Entry<String, Integer>> list = new ArrayList<>(map.entrySet());
 
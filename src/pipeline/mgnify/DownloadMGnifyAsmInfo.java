@@ -1,9 +1,11 @@
 package pipeline.mgnify;
 
+import configutil.Settings;
 import data.mgnify.APICrawler;
 import data.mgnify.AnalysisPage;
 import data.mgnify.Assembly;
 import data.mgnify.Sample;
+import data.mgnify.SampleResolver;
 import dbutil.Database;
 
 import javax.json.JsonObject;
@@ -11,10 +13,14 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class DownloadMGnifyAsmInfo {
 
@@ -33,6 +39,10 @@ public class DownloadMGnifyAsmInfo {
         int pageSize = 1000;
 
         JsonObject pagination = APICrawler.getPagination(pageSize);
+        if (pagination == null) {
+            System.err.println("Cannot read the pagination of the analyses endpoint");
+            return;
+        }
 
         int firstPage = pagination.getInt("page");
         int numPages = pagination.getInt("pages");
@@ -53,8 +63,25 @@ public class DownloadMGnifyAsmInfo {
             bw.write("assembly\tsampleAcc\tsubmittedSeqs\tenvMat\tlongitude\tlatitude\tenvBiome\tcollecDate\tspecies\tgeoLoc\tbiosample\thostTaxID\tenvFeat\tdownloadLink");
             bw.newLine();
 
+            // pages are requested ahead of the one being parsed, so the next page is usually ready when it is needed
+            int prefetch = Math.max(1, Settings.getInt("MGNIFY_PREFETCH_PAGES", "mgnify.prefetch.pages", 4));
+            Deque<CompletableFuture<byte[]>> window = new ArrayDeque<>();
+            int nextPage = firstPage;
+            List<Integer> failedPages = new ArrayList<>();
+
             for (int i = firstPage; i <= numPages; i++) {
-                JsonObject pageData = APICrawler.getPageData(i, pageSize);
+                while (nextPage <= numPages && window.size() < prefetch) {
+                    window.add(APICrawler.fetchPageData(nextPage++, pageSize));
+                }
+                byte[] pageData;
+                try {
+                    pageData = window.poll().join();
+                } catch (CompletionException e) {
+                    // one lost page should not end the crawl; it can be fetched again by starting from it
+                    System.err.println("Skipping page " + i + ": " + e.getCause());
+                    failedPages.add(i);
+                    continue;
+                }
                 AnalysisPage analysisPage = new AnalysisPage(pageData, outDir, i);
                 List<Assembly> pageAssemblies = analysisPage.parse(outDir);
                 assemblies.addAll(pageAssemblies);
@@ -90,6 +117,11 @@ public class DownloadMGnifyAsmInfo {
             }
             metadataKeys.close();
 
+            System.out.println(SampleResolver.get().getStats());
+            if (!failedPages.isEmpty()) {
+                System.err.println("Pages that could not be fetched: " + failedPages);
+            }
+
         }catch (IOException ioe) {
             ioe.printStackTrace();
         }
@@ -0,0 +1,28 @@
+package pipeline.mgnify;
+
+import dbutil.Database;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+
+/**
+ * Usage: ExportTable &lt;table or SELECT query&gt; &lt;output.tsv[.gz]&gt; [integer key column]
+ */
+public class ExportTable {
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: ExportTable <table or SELECT query> <output.tsv[.gz]> [integer key column]");
+            System.exit(1);
+        }
+        Database database = new Database();
+        try {
+            database.exporter().export(args[0], args.length > 2 ? args[2] : null, Paths.get(args[1]));
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+        } finally {
+            database.closeConnection();
+        }
+    }
+}
@@ -1,20 +1,37 @@
 package pipeline.mgnify;
 
 import dbutil.Database;
+import dbutil.NotificationListener;
+import dbutil.RowLoader;
 import pipeline.mgnify.antismash.io.GenBank;
+import pipeline.mgnify.antismash.io.RegionsJs;
 
+import javax.json.JsonArray;
 import java.io.File;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class GetASResults {
 
+    public static final int INGEST_THREADS = 2;
+    public static final long CATCH_UP_MILLIS = 5 * 60 * 1000;
+
     static Database database = new Database();
 
     public static void main(String[] args) {
 
         String resDir = args[0];
 
-        analyzeResults(resDir);
+        if (args.length > 1 && args[1].equals("listen")) {
+            listen(resDir);
+        } else {
+            analyzeResults(resDir);
+        }
 
     }
 
@@ -29,10 +46,103 @@ public class GetASResults {
 
     }
 
-    private static void analyzeRun(String resDir, String run) {
-        try {
-            File antismashDir = new File(resDir + File.separator + run + File.separator + "antismash");
-            File[] files = antismashDir.listFiles();
+    /**
+     * Long-running mode: ingests every run as soon as its status becomes 'success', using the notifications sent by
+     * the antismash_runs trigger. A catch-up scan at startup, after a reconnect and every CATCH_UP_MILLIS picks up
+     * runs whose notification was missed.
+     */
+    private static void listen(String resDir) {
+        ExecutorService executor = Executors.newFixedThreadPool(INGEST_THREADS);
+        Set<String> inFlight = ConcurrentHashMap.newKeySet();
+        Set<String> ingested = ConcurrentHashMap.newKeySet();
+
+        Runnable catchUp = () -> {
+            List<String> newRuns = database.getNewFinishedRuns();
+            if (newRuns != null) {
+                for (String run : newRuns) {
+                    submitRun(executor, inFlight, ingested, resDir, run);
+                }
+            }
+        };
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        NotificationListener listener = database.listen(Database.RUN_SUCCESS_CHANNEL,
+                run -> submitRun(executor, inFlight, ingested, resDir, run),
+                () -> scheduler.execute(catchUp));
+        scheduler.scheduleWithFixedDelay(catchUp, 0, CATCH_UP_MILLIS, TimeUnit.MILLISECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            listener.close();
+            scheduler.shutdownNow();
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.MINUTES);
+            } catch (InterruptedException ignored) {}
+            database.closeConnection();
+        }));
+    }
+
+    private static void submitRun(ExecutorService executor, Set<String> inFlight, Set<String> ingested,
+                                  String resDir, String run) {
+        if (ingested.contains(run) || !inFlight.add(run)) {
+            return;
+        }
+        executor.submit(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                if (ingestRun(resDir, run)) {
+                    ingested.add(run);
+                    System.out.println("Ingested " + run + " in " + (System.currentTimeMillis() - start) + " ms");
+                }
+            } finally {
+                inFlight.remove(run);
+            }
+        });
+    }
+
+    /**
+     * Loads the run's regions and protoclusters. Protoclusters are loaded last because getNewFinishedRuns treats a
+     * run with protoclusters as done; regions from an earlier, interrupted attempt are deleted first.
+     */
+    private static boolean ingestRun(String resDir, String run) {
+        database.executeUpdate("DELETE FROM regions WHERE assembly = ?", run);
+        try (RowLoader loader = database.regionLoader()) {
+            boolean found = RegionsJs.read(resDir, run, (recordName, length, productCategories, anchor, start, end,
+                                                         isContigEdge, type, products, regionNum) ->
+                    loader.addRow(run, recordName, length, strings(productCategories), anchor, start, end,
+                            isContigEdge, type, strings(products), regionNum));
+            if (!found) {
+                System.out.println("No regions file for " + run);
+                return false;
+            }
+            loader.commit();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        return analyzeRun(resDir, run);
+    }
+
+    private static String[] strings(JsonArray array) {
+        String[] values = new String[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getString(i);
+        }
+        return values;
+    }
+
+    /**
+     * Loads the run's protoclusters in one COPY that is committed only if every GenBank file was read, since a run
+     * with protoclusters is never retried.
+     */
+    private static boolean analyzeRun(String resDir, String run) {
+        File antismashDir = new File(resDir + File.separator + run + File.separator + "antismash");
+        File[] files = antismashDir.listFiles();
+        if (files == null) {
+            System.out.println("No antismash directory for " + run);
+            return false;
+        }
+        try (RowLoader pcLoader = database.protoclusterLoader()) {
             for(File f  : files) {
                 if(f.getAbsolutePath().endsWith(".gbk") && f.getAbsolutePath().contains(".region")) {
                     String[] fSplit = f.getName().split("\\.");
@@ -45,13 +155,16 @@ public class GetASResults {
 //                        System.out.println(accession + "\t" + region + "\t" + pc.getNumber() + "\t" + pc.getCategory() +
 //                                "\t" + pc.getProduct() +
 //                                "\t" + pc.getContigEdge());
-                        database.insertPC(run, accession, region, pc.getNumber(), pc.getCategory(), pc.getProduct(),
+                        pcLoader.addRow(run, accession, region, pc.getNumber(), pc.getCategory(), pc.getProduct(),
                                 pc.getContigEdge(), f.getAbsolutePath());
                     }
                 }
             }
+            pcLoader.commit();
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return false;
     }
 }
@@ -1,47 +1,65 @@
 package pipeline.mgnify;
 
+import dbutil.AsyncSink;
+import dbutil.AtlasDatabase;
 import dbutil.Database;
+import dbutil.RowLoader;
+import pipeline.mgnify.antismash.io.RegionsJs;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-import javax.json.Json;
 import javax.json.JsonArray;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
-import javax.json.JsonValue;
 
+/**
+ * Reads the regions of every finished run in parallel and loads them into the regions table, or appends them to a
+ * TSV file if one is given as the second argument. Reader threads only parse; the sink's writer thread does the
+ * COPY (or file write), one batch of runs at a time.
+ */
 public class GetASResultsParallel {
 
     public static final int N_THREADS = 4;
-    static Database database = new Database();
+    static AtlasDatabase database = Database.open();
 
     public static void main(String[] args) {
         String resDir = args[0];
-        String regionsOut = args[1];
+        String regionsOut = args.length > 1 ? args[1] : null;
         analyzeResults(resDir, regionsOut);
     }
 
     private static void analyzeResults(String resDir, String regionsOut) {
         ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
-        List<String> finishedRuns = database.getAllFinishedRuns();
-        System.out.println("Total finished runs: " + finishedRuns.size());
-
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(regionsOut), true))) {
-            for (String run : finishedRuns) {
-                AnalysisChecker checker = new AnalysisChecker(resDir, run, bw);
+        AsyncSink<RunRegions> regionSink = null;
+        // resources close in reverse order, so the sink drains into bw before bw is closed
+        try (BufferedWriter bw = regionsOut == null ? null : new BufferedWriter(new FileWriter(new File(regionsOut), true));
+             AsyncSink<RunRegions> sink = new AsyncSink<>("regions", 1000, 100,
+                     batch -> {
+                         if (bw == null) {
+                             loadRegions(batch);
+                         } else {
+                             writeRegions(bw, batch);
+                         }
+                     });
+             Stream<String> finishedRuns = database.streamAllFinishedRuns()) {
+            regionSink = sink;
+            Iterator<String> runs = finishedRuns.iterator();
+            int submitted = 0;
+            while (runs.hasNext()) {
+                AnalysisChecker checker = new AnalysisChecker(resDir, runs.next(), sink);
                 executor.submit(checker);
+                submitted++;
             }
+            System.out.println("Total finished runs: " + submitted);
             executor.shutdown();
             executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS); // Wait for all tasks to finish
         } catch (IOException | InterruptedException e) {
@@ -49,105 +67,112 @@ public class GetASResultsParallel {
         } catch (Throwable t) {
             System.err.println("Unhandeled exception: " + t.getMessage());
             t.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+        if (regionSink != null) {
+            for (RunRegions failed : regionSink.takeFailures()) {
+                System.err.println("Regions of " + failed.run + " were not written");
+            }
+        }
+        database.closeConnection();
+    }
+
+    /**
+     * Replaces the regions of the runs in {@code batch} with one COPY.
+     */
+    private static void loadRegions(List<RunRegions> batch) throws SQLException {
+        for (RunRegions runRegions : batch) {
+            database.executeUpdate("DELETE FROM regions WHERE assembly = ?", runRegions.run);
+        }
+        try (RowLoader loader = database.regionLoader()) {
+            for (RunRegions runRegions : batch) {
+                for (Object[] row : runRegions.rows) {
+                    loader.addRow(row);
+                }
+            }
+            loader.commit();
         }
     }
 
+    private static void writeRegions(BufferedWriter bw, List<RunRegions> batch) throws IOException {
+        for (RunRegions runRegions : batch) {
+            for (Object[] row : runRegions.rows) {
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < row.length; i++) {
+                    if (i > 0) {
+                        line.append('\t');
+                    }
+                    line.append(row[i] instanceof String[] ? arrayLiteral((String[]) row[i]) : String.valueOf(row[i]));
+                }
+                bw.write(line.append('\n').toString());
+            }
+        }
+        bw.flush();
+    }
+
+    private static String arrayLiteral(String[] values) {
+        StringBuilder literal = new StringBuilder("{");
+        for (int k = 0; k < values.length; k++) {
+            if (k > 0) literal.append(",");
+            literal.append('"').append(values[k]).append('"');
+        }
+        return literal.append("}").toString();
+    }
+
+    private static String[] strings(JsonArray array) {
+        String[] values = new String[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getString(i);
+        }
+        return values;
+    }
+
+    /**
+     * The regions of one run, in the column order of {@link AtlasDatabase#regionLoader()}.
+     */
+    static class RunRegions {
+        final String run;
+        final List<Object[]> rows;
+
+        RunRegions(String run, List<Object[]> rows) {
+            this.run = run;
+            this.rows = rows;
+        }
+    }
 
     static class AnalysisChecker implements Runnable {
 
         private final String resDir;
         private final String run;
-        private final BufferedWriter bw;
+        private final AsyncSink<RunRegions> regionSink;
 
-        public AnalysisChecker(String resDir, String run, BufferedWriter bw) {
+        public AnalysisChecker(String resDir, String run, AsyncSink<RunRegions> regionSink) {
             this.resDir = resDir;
             this.run = run;
-            this.bw = bw;
+            this.regionSink = regionSink;
         }
 
         @Override
         public void run() {
             try {
 //                System.out.println("Analyzing " + run);
-                File antismashDir = new File(resDir + File.separator + run + File.separator + "antismash");
-
-                File regionsFile = new File(antismashDir + File.separator + "regions.js");
-
-                if(!regionsFile.exists()) {
+                List<Object[]> rows = new ArrayList<>();
+                boolean found = RegionsJs.read(resDir, run, (recordName, length, productCategories, anchor, start, end,
+                                                              isContigEdge, type, products, regionNum) ->
+                        rows.add(new Object[]{run, recordName, length, strings(productCategories), anchor, start, end,
+                                isContigEdge, type, strings(products), regionNum}));
+                if (!found) {
                     System.out.println("No regions file for " + run);
                     return;
                 }
-
-                String content = new String(Files.readAllBytes(Paths.get(antismashDir + File.separator + "regions.js")));
-                content = content.replace("var recordData = ", "");
-
-//                System.out.println(content);
-
-                // Parse JSON using javax.json
-                JsonReader jsonReader = Json.createReader(new java.io.StringReader(content));
-                JsonArray records = jsonReader.readArray();
-                jsonReader.close();
-
-//                System.out.println(records.size());
-
-                for (int i = 0; i < records.size(); i++) {
-                    JsonObject record = records.getJsonObject(i);
-                    JsonArray regions = record.getJsonArray("regions");
-                    if(regions.size() == 0)
-                        continue;
-                    String recordName = record.getString("seq_id");
-                    int length = record.getInt("length");
-                    for (int j = 0; j < regions.size(); j++) {
-                        JsonObject region = regions.getJsonObject(j);
-//                        JsonArray orfs = region.getJsonArray("orfs"); //get orfs when needed
-                        JsonArray productCategories = region.getJsonArray("product_categories");
-                        String anchor = region.getString("anchor");
-                        int start = region.getInt("start");
-                        int end = region.getInt("end");
-                        String type = region.getString("type");
-                        JsonArray clusters = region.getJsonArray("clusters");
-                        JsonArray products = region.getJsonArray("products");
-                        ArrayList<String> productArr = new ArrayList<>();
-                        for (JsonValue p : products) {
-                            productArr.add(p.toString());
-                        }
-
-                        boolean isContigEdge = false;
-                        if(start == 1 || end == length)
-                            isContigEdge = true;
-
-//                        database.insertRegion(run, recordName, length, productCategories.toString(), anchor, start, end, isContigEdge, type, productArr.toString(), (j+1));
-
-                        StringBuilder pcBuilder = new StringBuilder("{");
-                        for (int k = 0; k < productCategories.size(); k++) {
-                            if (k > 0) pcBuilder.append(",");
-                            pcBuilder.append(productCategories.get(k).toString());
-                        }
-                        pcBuilder.append("}");
-                        String productCategoriesString = pcBuilder.toString();
-
-                        String productArrString = "{" + String.join(",", productArr) + "}";
-
-                        bw.write(run + "\t" + recordName + "\t" + length + "\t" + productCategoriesString + "\t" +
-                                anchor + "\t" + start + "\t" + end + "\t" + isContigEdge + "\t" + type + "\t" +
-                                productArrString + "\t" + (j+1) + "\n");
-
-//
-//                        System.out.println(run + "\t" + recordName + "\t" + length + "\t" + productCategories.toString() + "\t" + anchor + "\t" + start + "\t" + end + "\t" + type + "\t" + clusters.toString() + "\t" + productArr.toString());
-//                        bw.write(run + "\t" + recordName + "\t" + length + "\t" + productCategories.toString() + "\t" + anchor + "\t" + start + "\t" + end + "\t" + isContigEdge + "\t" + type + "\t" + clusters.toString() + "\t" + productArr.toString() + "\t" + (j+1));
-//                        bw.write(run + "\t" + recordName + "\t" + length + "\t" + productCategories.toString() + "\t" + anchor + "\t" + start + "\t" + end + "\t" + isContigEdge + "\t" + type + "\t" + productArr.toString() + "\t" + (j+1));
-//                        bw.newLine();
-                        bw.flush();
-
-                    }
-                }
+                // a run's regions are written together, so a run is never loaded half
+                regionSink.put(new RunRegions(run, rows));
             } catch (Throwable t) {
                 System.err.println("Unhandeled exception: " + t.getMessage());
                 t.printStackTrace();
             }
         }
-
-
     }
 
 }
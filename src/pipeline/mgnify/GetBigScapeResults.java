@@ -1,24 +1,35 @@
 package pipeline.mgnify;
 
+import dbutil.AsyncSink;
+import dbutil.AtlasDatabase;
 import dbutil.Database;
+import dbutil.RowLoader;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class GetBigScapeResults {
 
-    static Database database = new Database();
+    public static final int N_THREADS = 4;
+    static AtlasDatabase database = Database.open();
 
     public static void main(String[] args) {
         String resultsDir = "/gcfs/bigscape_compl_out/network_files/2023-05-03_16-13-17_hybrids_auto/";
         String bgcsPath = "/gcfs/compl_clusters/temp.txt";
         Map<String, String> bgc2AsmMap = parseBGCPaths(bgcsPath);
         parseResults(resultsDir, bgc2AsmMap);
+        database.closeConnection();
     }
 
     private static Map<String, String> parseBGCPaths(String bgcsPath) {
@@ -35,25 +46,68 @@ public class GetBigScapeResults {
         return bgcToAsmMap;
     }
 
+    /**
+     * Parses the types in parallel; the sink's writer thread loads each type's clustering with one COPY while the
+     * next types are still being read.
+     */
     private static void parseResults(String resultsDir, Map<String, String> bgc2AsmMap) {
-        try {
-            File directory = new File(resultsDir);
-            File[] files = directory.listFiles();
+        File[] files = new File(resultsDir).listFiles();
+        if (files == null) {
+            System.err.println("Cannot list " + resultsDir);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        AsyncSink<TypeClustering> clusteringSink = new AsyncSink<>("bigscape_clustering", N_THREADS, 1,
+                GetBigScapeResults::loadClustering);
+        try (clusteringSink) {
             for(File file : files) {
                 if(file.isDirectory()) {
                     String type = file.getName();
                     System.out.println(type + "\t" + file.getAbsolutePath());
-                    parseType(type, file, bgc2AsmMap);
+                    executor.submit(() -> {
+                        List<Object[]> rows = parseType(type, file, bgc2AsmMap);
+                        if (rows != null) {
+                            clusteringSink.put(new TypeClustering(type, rows));
+                        }
+                        return null;
+                    });
                 }
             }
-        } catch (Exception e) {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
             e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+        for (TypeClustering failed : clusteringSink.takeFailures()) {
+            System.err.println("Clustering of " + failed.type + " was not loaded");
         }
     }
 
-    private static void parseType(String type, File dir, Map<String, String> bgc2AsmMap) {
+    private static void loadClustering(List<TypeClustering> batch) throws SQLException {
+        try (RowLoader clusteringLoader = database.clusteringLoader()) {
+            for (TypeClustering clustering : batch) {
+                for (Object[] row : clustering.rows) {
+                    clusteringLoader.addRow(row);
+                }
+            }
+            clusteringLoader.commit();
+        }
+    }
+
+    /**
+     * Reads all clustering files of one type. Returns null if any of them cannot be read, so that a type is loaded
+     * completely or not at all.
+     */
+    private static List<Object[]> parseType(String type, File dir, Map<String, String> bgc2AsmMap) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            System.err.println("Cannot list " + dir);
+            return null;
+        }
+        List<Object[]> rows = new ArrayList<>();
         try {
-            File[] files = dir.listFiles();
             for(File f : files) {
                 if(f.getName().contains("clustering")) {
                     String[] split = f.getName().split("_");
@@ -64,15 +118,13 @@ public class GetBigScapeResults {
                         while((line = br.readLine()) != null) {
                             String[] lineSplit = line.split("\t");
                             if(lineSplit[0].contains("region")) {
-                                database.insertClustering(lineSplit[0], type, Integer.parseInt(lineSplit[1]), clusteringThreshold,
-                                        bgc2AsmMap.get(lineSplit[0] + ".gbk"));
+                                rows.add(new Object[]{lineSplit[0], type, Integer.parseInt(lineSplit[1]), clusteringThreshold,
+                                        bgc2AsmMap.get(lineSplit[0] + ".gbk")});
                             } else {
-                                database.insertClustering(lineSplit[0], type, Integer.parseInt(lineSplit[1]), clusteringThreshold,
-                                        "mibig2.1");
+                                rows.add(new Object[]{lineSplit[0], type, Integer.parseInt(lineSplit[1]), clusteringThreshold,
+                                        "mibig2.1"});
                             }
                         }
-                    } catch (IOException ioe) {
-                        ioe.printStackTrace();
                     }
                 } else if (f.getName().contains(".network")) {
 //                    String[] split = f.getName().split("_");
@@ -108,9 +160,21 @@ public class GetBigScapeResults {
 //                    }
                 }
             }
+            return rows;
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return null;
+    }
+
+    static class TypeClustering {
+        final String type;
+        final List<Object[]> rows;
+
+        TypeClustering(String type, List<Object[]> rows) {
+            this.type = type;
+            this.rows = rows;
+        }
     }
 
 }
@@ -20,10 +20,15 @@ public class GetBiomeTypes {
     static Database database = new Database();
     public static void main(String[] args) {
         crawlBiomePages();
+        database.closeConnection();
     }
 
     private static void crawlBiomePages() {
         JsonObject biomesPage = APICrawler.getJsonObjectFromURL("https://www.ebi.ac.uk/metagenomics/api/v1/biomes?format=json");
+        if (biomesPage == null) {
+            System.err.println("Cannot read the biomes list");
+            return;
+        }
 
         JsonObject meta = biomesPage.getJsonObject("meta");
         JsonObject pagination = meta.getJsonObject("pagination");
@@ -48,6 +53,10 @@ public class GetBiomeTypes {
         System.out.println(studiesBaseURL);
 
         JsonObject studiesBase = APICrawler.getJsonObjectFromURL(studiesBaseURL);
+        if (studiesBase == null) {
+            System.err.println("Skipping studies of " + biome.getId());
+            return;
+        }
         JsonObject meta = studiesBase.getJsonObject("meta");
         JsonObject pagination = meta.getJsonObject("pagination");
         int studiesTotalPages = pagination.getInt("pages");
@@ -55,6 +64,10 @@ public class GetBiomeTypes {
         for (int i = 1; i <= studiesTotalPages; i++) {
             System.out.println("\t" + studiesBaseURL + "&page=" + i);
             JsonObject studiesPage = APICrawler.getJsonObjectFromURL(studiesBaseURL + "&page=" + i);
+            if (studiesPage == null) {
+                System.err.println("Skipping " + studiesBaseURL + "&page=" + i);
+                continue;
+            }
             JsonArray data = studiesPage.getJsonArray("data");
             for(JsonValue datum : data) {
                 JsonObject studyObj = datum.asJsonObject();
@@ -71,6 +84,10 @@ public class GetBiomeTypes {
 
     private static void parseAnalysis(String analysesLink, Biome biome) {
         JsonObject analysesBase = APICrawler.getJsonObjectFromURL(analysesLink);
+        if (analysesBase == null) {
+            System.err.println("Skipping " + analysesLink);
+            return;
+        }
         JsonObject meta = analysesBase.getJsonObject("meta");
         JsonObject pagination = meta.getJsonObject("pagination");
         int pages = pagination.getInt("pages");
@@ -78,17 +95,21 @@ public class GetBiomeTypes {
         for (int i = 1; i <= pages; i++) {
             System.out.println("\t\t" + analysesLink + "&page=" + i);
             JsonObject analysesPage = APICrawler.getJsonObjectFromURL(analysesLink + "&page=" + i);
+            if (analysesPage == null) {
+                System.err.println("Skipping " + analysesLink + "&page=" + i);
+                continue;
+            }
             JsonArray data = analysesPage.getJsonArray("data");
             for(JsonValue datum : data) {
                 JsonObject analysisObj = datum.asJsonObject();
                 String analysisID = analysisObj.getString("id");
                 boolean exists = Boolean.TRUE.equals(
-                        database.executeQuery(
-                                "SELECT 1 FROM mgnify_asms WHERE assembly = '" + analysisID + "'",
-                                rs -> rs.next()));
+                        database.cachedQuery("mgnify_asms",
+                                "SELECT 1 FROM mgnify_asms WHERE assembly = ?",
+                                rs -> rs.next(), analysisID));
                 if (exists) {
-                    database.executeUpdate("INSERT INTO assembly2biome (assembly, biome) VALUES ('" + analysisID + "', '" +
-                            biome.getId() + "')");
+                    database.executeUpdate("INSERT INTO assembly2biome (assembly, biome) VALUES (?, ?)",
+                            analysisID, biome.getId());
                 }
             }
         }
@@ -96,6 +117,10 @@ public class GetBiomeTypes {
 
     private static void getPage(int i) {
         JsonObject page = APICrawler.getJsonObjectFromURL(BASE_URL + i);
+        if (page == null) {
+            System.err.println("Skipping " + BASE_URL + i);
+            return;
+        }
 
         JsonArray data = page.getJsonArray("data");
         for (JsonValue datum : data) {
@@ -0,0 +1,84 @@
+package pipeline.mgnify;
+
+import configutil.Settings;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Single entry point for the pipeline tools:
+ * <pre>
+ * java -jar bgc-atlas-analysis.jar [--config db.properties] &lt;command&gt; [args...]
+ * </pre>
+ * The database settings are loaded once, before the command runs. Only the class of the selected command is
+ * initialised, and the database connects on its first statement, so short job steps start without waiting for a
+ * connection.
+ */
+public class Launcher {
+
+    private static final Map<String, Command> COMMANDS = new LinkedHashMap<>();
+
+    static {
+        add("analyze", "run antiSMASH on queued assemblies", AnalyzeDatasets::main);
+        add("analyze-binac", "run antiSMASH on one dataset on BinAC", AnalyzeDatasetsBinAC::main);
+        add("check-results", "record finished antiSMASH runs in a directory", CheckASResultsLocal::main);
+        add("check-results-parallel", "same as check-results, with several threads", CheckASResultsLocalParallel::main);
+        add("download-asm-info", "download assembly metadata from MGnify", DownloadMGnifyAsmInfo::main);
+        add("populate-assemblies", "load assemblies from downloaded assembly files", PopulateAssembliesFromFiles::main);
+        add("get-biome-types", "load MGnify biomes", GetBiomeTypes::main);
+        add("get-as-results", "load regions of finished runs, or 'listen' for new ones", GetASResults::main);
+        add("get-as-results-parallel", "write regions of finished runs to a file", GetASResultsParallel::main);
+        add("get-bigscape-results", "load BiG-SCAPE clustering results", GetBigScapeResults::main);
+        add("prep-bigslice", "write the BiG-SLiCE datasets.tsv and taxonomy files", PrepBigSliceInput::main);
+        add("parse-bigslice", "parse BiG-SLiCE clustering", ParseBigSliceClustering::main);
+        add("create-bigslice-tables", "write and load the BiG-SLiCE tables", CreateBigSliceTables::main);
+        add("create-bigslice-gcf-table", "write GCF and membership tables from a regions export", CreateBigsliceGcfTable::main);
+        add("create-gcf-table", "write the GCF summary table", CreateGCFTable::main);
+        add("export", "export a table or query to TSV", ExportTable::main);
+        add("migrate", "apply schema migrations and report indexes", MigrateSchema::main);
+        add("reap", "requeue runs with expired leases", ReapExpiredRuns::main);
+        add("status", "print the antiSMASH run status of assemblies", RunStatus::main);
+    }
+
+    private static void add(String name, String description, Consumer<String[]> main) {
+        COMMANDS.put(name, new Command(description, main));
+    }
+
+    public static void main(String[] args) {
+        int first = 0;
+        if (args.length > 1 && args[0].equals("--config")) {
+            try {
+                Settings.configure(args[1]);
+            } catch (IOException e) {
+                System.err.println("Cannot read " + args[1] + ": " + e.getMessage());
+                System.exit(1);
+            }
+            first = 2;
+        }
+        Command command = args.length > first ? COMMANDS.get(args[first]) : null;
+        if (command == null) {
+            usage();
+            System.exit(args.length > first && !args[first].equals("help") ? 1 : 0);
+        }
+        command.main.accept(Arrays.copyOfRange(args, first + 1, args.length));
+    }
+
+    private static void usage() {
+        System.err.println("Usage: Launcher [--config <db.properties>] <command> [args...]");
+        System.err.println("Commands:");
+        COMMANDS.forEach((name, command) -> System.err.println(String.format("  %-26s%s", name, command.description)));
+    }
+
+    private static class Command {
+        final String description;
+        final Consumer<String[]> main;
+
+        Command(String description, Consumer<String[]> main) {
+            this.description = description;
+            this.main = main;
+        }
+    }
+}
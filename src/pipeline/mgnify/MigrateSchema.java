@@ -0,0 +1,15 @@
+package pipeline.mgnify;
+
+import dbutil.Database;
+
+public class MigrateSchema {
+
+    public static void main(String[] args) {
+        Database database = new Database();
+        // other tools only migrate on connect with DB_MIGRATE=true; this waits for the lock and applies everything
+        database.migrate();
+        database.printIndexReport();
+
+        database.closeConnection();
+    }
+}
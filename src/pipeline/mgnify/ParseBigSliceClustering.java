@@ -1,8 +1,12 @@
 package pipeline.mgnify;
 
 import dbutil.Database;
+import dbutil.ParallelCopyExporter;
+import dbutil.RowLoader;
 
 import java.io.*;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -16,12 +20,13 @@ public class ParseBigSliceClustering {
         String bgcInfoFile = "/ceph/ibmi/tgm/bgc-atlas/data/analysis/bgc-info.txt"; //exported from bigslice sqlite
 
         // \copy protoclusters TO 'protoclusters.tab' WITH (FORMAT CSV, DELIMITER E'\t', HEADER true)
-        String protoclustersTable = "/ceph/ibmi/tgm/bgc-atlas/data/analysis/as_regions_export.txt"; //exported from bgc-atlas postgresql
+        String protoclustersTable = "/ceph/ibmi/tgm/bgc-atlas/data/analysis/as_regions_export.tsv.gz"; //exported from bgc-atlas postgresql
 
         String newProtoclustersTable = "/ceph/ibmi/tgm/bgc-atlas/data/analysis/as_regions_5_new.txt";
         String gcfMembershipTable = "/ceph/ibmi/tgm/bgc-atlas/data/analysis/gcf_membership_new.tab";
 
 //        parse(bgcInfoFile, gcfMembershipFile);
+//        parseBulk(bgcInfoFile, gcfMembershipFile);
 
         /**
          * CREATE TABLE bgc (
@@ -40,6 +45,12 @@ public class ParseBigSliceClustering {
          */
 
 
+        try {
+            database.exporter().export("regions", "region_id", Paths.get(protoclustersTable));
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+            return;
+        }
         parseAndWriteOut2(bgcInfoFile, gcfMembershipFile, protoclustersTable, gcfMembershipTable, newProtoclustersTable);
 
 
@@ -52,7 +63,7 @@ public class ParseBigSliceClustering {
     private static void parseAndWriteOut2(String bgcInfoFile, String gcfMembershipFile, String regionsTable, String gcfMembershipTable, String newRegionsTable) {
         try {
 
-            BufferedReader br = new BufferedReader(new FileReader(new File(regionsTable)));
+            BufferedReader br = ParallelCopyExporter.openReader(regionsTable);
             String line = br.readLine();
             //regionID        assembly        contig_name     contig_len      product_categories      anchor  start   end     contig_edge     type    products        region_num
 
@@ -138,7 +149,7 @@ public class ParseBigSliceClustering {
 
     private static void parseAndWriteOut(String bgcInfoFile, String gcfMembershipFile, String protoclustersTable, String gcfMembershipTable, String newProtoclustersTable) {
         try {
-            BufferedReader br = new BufferedReader(new FileReader(new File(protoclustersTable)));
+            BufferedReader br = ParallelCopyExporter.openReader(protoclustersTable);
             String line = br.readLine();
 
             Map<String, String> gbk2Row = new HashMap<>();
@@ -197,7 +208,7 @@ public class ParseBigSliceClustering {
             System.out.println(gbk2Row.size());
             System.out.println(gbk2bgcId.size());
 
-            br = new BufferedReader(new FileReader(new File(protoclustersTable)));
+            br = ParallelCopyExporter.openReader(protoclustersTable);
             line = br.readLine();
 
             while((line = br.readLine()) != null) {
@@ -230,6 +241,43 @@ public class ParseBigSliceClustering {
         }
     }
 
+    /**
+     * Same result as {@link #parse}, but streams both files into staging tables and applies them with one
+     * join-based UPDATE/INSERT each instead of a LIKE scan per BGC.
+     */
+    private static void parseBulk(String bgcInfoFile, String gcfMembershipFile) {
+        database.prepareStagingTable("bigslice_bgc_staging", "bgc_id INT, gbk_name TEXT");
+        database.prepareStagingTable("bigslice_membership_staging", "gcf_id INT, bgc_id INT, membership_value DOUBLE PRECISION");
+
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(bgcInfoFile)));
+             RowLoader loader = database.copyLoader("bigslice_bgc_staging", "bgc_id", "gbk_name")) {
+            String line = br.readLine();
+            while((line = br.readLine()) != null) {
+                String[] lineSplit = line.split(",");
+                loader.addRow(Integer.parseInt(lineSplit[0]), lineSplit[7]);
+            }
+            loader.commit();
+        } catch (IOException | SQLException | RuntimeException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(gcfMembershipFile)));
+             RowLoader loader = database.copyLoader("bigslice_membership_staging", "gcf_id", "bgc_id", "membership_value")) {
+            String line = br.readLine();
+            while((line = br.readLine()) != null) {
+                String[] lineSplit = line.split(",");
+                loader.addRow(Integer.parseInt(lineSplit[0]), Integer.parseInt(lineSplit[1]), Double.parseDouble(lineSplit[2]));
+            }
+            loader.commit();
+        } catch (IOException | SQLException | RuntimeException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        database.mergeGCFMembershipStaging(600);
+    }
+
     private static void parse(String bgcInfoFile, String gcfMembershipFile) {
         try {
             BufferedReader br = new BufferedReader(new FileReader(new File(bgcInfoFile)));
@@ -237,8 +285,8 @@ public class ParseBigSliceClustering {
 
             while((line = br.readLine()) != null) {
                 String[] lineSplit = line.split(",");
-                database.executeUpdate("UPDATE protoclusters SET bigslice_bgc_id = " + lineSplit[0] +
-                        " WHERE gbk_file LIKE '%" + lineSplit[7] + "'");
+                database.executeUpdate("UPDATE protoclusters SET bigslice_bgc_id = ? WHERE gbk_file LIKE ?",
+                        Integer.parseInt(lineSplit[0]), "%" + lineSplit[7]);
             }
 
             br.close();
@@ -6,7 +6,8 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.List;
+import java.util.Iterator;
+import java.util.stream.Stream;
 
 public class PrepBigSliceInput {
 
@@ -25,23 +26,25 @@ public class PrepBigSliceInput {
             bwDatasets.newLine();
             new File(inputDir + File.separator + "taxonomy").mkdir();
 
-            List<String> allFinishedRuns = database.getAllFinishedRuns();
-            for(String run : allFinishedRuns) {
-                if(!new File("/vol/atlas/mgnify/data/analysis/datasets/" + run).exists())
-                    continue;
-
-                bwDatasets.write(run + "\t" + "datasets/" + run + "\t"
-                        + "taxonomy" + File.separator + "taxonomy_" + run + ".tsv" + "\t" +
-                        run);
-                bwDatasets.newLine();
-                BufferedWriter bwTax = new BufferedWriter(new FileWriter(new File(inputDir + File.separator + "taxonomy" +
-                        File.separator + "taxonomy_" + run + ".tsv")));
-                bwTax.write("antismash\tBacteria\t \t \t \t \t \t" + run);
-                bwTax.newLine();
-                bwTax.close();
+            try (Stream<String> allFinishedRuns = database.streamAllFinishedRuns()) {
+                Iterator<String> runs = allFinishedRuns.iterator();
+                while (runs.hasNext()) {
+                    String run = runs.next();
+                    if(!new File("/vol/atlas/mgnify/data/analysis/datasets/" + run).exists())
+                        continue;
+
+                    bwDatasets.write(run + "\t" + "datasets/" + run + "\t"
+                            + "taxonomy" + File.separator + "taxonomy_" + run + ".tsv" + "\t" +
+                            run);
+                    bwDatasets.newLine();
+                    BufferedWriter bwTax = new BufferedWriter(new FileWriter(new File(inputDir + File.separator + "taxonomy" +
+                            File.separator + "taxonomy_" + run + ".tsv")));
+                    bwTax.write("antismash\tBacteria\t \t \t \t \t \t" + run);
+                    bwTax.newLine();
+                    bwTax.close();
+                }
             }
 
-
             bwDatasets.close();
         } catch (IOException ioe) {
             ioe.printStackTrace();
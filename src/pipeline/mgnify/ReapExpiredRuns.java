@@ -0,0 +1,21 @@
+package pipeline.mgnify;
+
+import dbutil.Database;
+
+import java.util.List;
+
+public class ReapExpiredRuns {
+
+    public static void main(String[] args) {
+        Database database = new Database();
+        int maxAttempts = args.length > 0 ? Integer.parseInt(args[0]) : database.getMaxRunAttempts();
+
+        List<String[]> reaped = database.reapExpiredLeases(maxAttempts);
+        for(String[] run : reaped) {
+            System.out.println(run[0] + "\t" + (run[1] == null ? "requeued" : run[1]));
+        }
+        System.out.println("Reaped " + reaped.size() + " expired leases");
+
+        database.closeConnection();
+    }
+}
@@ -0,0 +1,15 @@
+package pipeline.mgnify;
+
+import dbutil.Database;
+
+public class RunStatus {
+
+    public static void main(String[] args) {
+        Database database = new Database();
+        for (String assembly : args) {
+            String status = database.getRunStatus(assembly);
+            System.out.println(assembly + "\t" + (status == null ? "queued" : status.isEmpty() ? "unknown" : status));
+        }
+        database.closeConnection();
+    }
+}
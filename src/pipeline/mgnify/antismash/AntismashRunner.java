@@ -1,14 +1,20 @@
 package pipeline.mgnify.antismash;
 
+import dbutil.Database;
+import dbutil.LeaseHeartbeat;
+
 import java.io.File;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-import static pipeline.mgnify.AnalyzeDatasets.database;
 import static pipeline.mgnify.AnalyzeDatasetsBinAC.transferResults;
 
 public class AntismashRunner implements Runnable {
 
+    private static final long DOWNLOAD_TIMEOUT_MILLIS = 2 * 60 * 60 * 1000L;
+
+    private final Database database;
     private final String analysisDir;
     private final String assemblyId;
     private final int numCores;
@@ -17,9 +23,13 @@ public class AntismashRunner implements Runnable {
     private final String condaPath;
     private int exitCode = -2;
     private final CountDownLatch latch;
+    private String workerId;
+    private long leaseMillis;
 
 
-    public AntismashRunner(String analysisDir, String assemblyId, int numCores, CountDownLatch latch, String server) {
+    public AntismashRunner(Database database, String analysisDir, String assemblyId, int numCores, CountDownLatch latch,
+                           String server) {
+        this.database = database;
         this.analysisDir = analysisDir;
         this.assemblyId = assemblyId;
         this.numCores = numCores;
@@ -29,7 +39,9 @@ public class AntismashRunner implements Runnable {
         this.condaPath = "";
     }
 
-    public AntismashRunner(String analysisDir, String assemblyId, int nThreads, CountDownLatch latch, String server, String condaEnv, String condaPath) {
+    public AntismashRunner(Database database, String analysisDir, String assemblyId, int nThreads, CountDownLatch latch,
+                           String server, String condaEnv, String condaPath) {
+        this.database = database;
         this.analysisDir = analysisDir;
         this.assemblyId = assemblyId;
         this.numCores = nThreads;
@@ -39,12 +51,58 @@ public class AntismashRunner implements Runnable {
         this.condaPath = condaPath;
     }
 
+    /**
+     * Marks this run as leased by {@code workerId}: the lease is renewed while antiSMASH runs and released with the
+     * final status when it finishes.
+     */
+    public void setLease(String workerId, long leaseMillis) {
+        this.workerId = workerId;
+        this.leaseMillis = leaseMillis;
+    }
+
     @Override
     public void run() {
+        if(workerId == null) {
+            if(awaitDownload()) {
+                runAntismash();
+            }
+            return;
+        }
+        // the heartbeat also keeps the lease while the assembly is downloaded, which awaitDownload bounds
+        LeaseHeartbeat heartbeat = new LeaseHeartbeat(database, assemblyId, workerId, leaseMillis);
+        boolean succeeded = false;
+        try {
+            succeeded = awaitDownload() && runAntismash();
+        } finally {
+            heartbeat.close();
+            if (heartbeat.isLost()) {
+                System.err.println("Lease on " + assemblyId + " was lost while antiSMASH ran; another worker may have run it too");
+            }
+            database.finishRun(assemblyId, workerId, succeeded,
+                    analysisDir + File.separator + assemblyId + File.separator + "antismash");
+        }
+    }
 
+    /**
+     * Waits for the assembly download, for at most {@link #DOWNLOAD_TIMEOUT_MILLIS}.
+     */
+    private boolean awaitDownload() {
         try {
-            latch.await();
+            if(latch.await(DOWNLOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            System.err.println("Download of " + assemblyId + " did not finish within " + DOWNLOAD_TIMEOUT_MILLIS + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
 
+    /**
+     * Runs antiSMASH on the downloaded assembly and returns whether it succeeded.
+     */
+    private boolean runAntismash() {
+        try {
 //            database.updateRunStatus(assemblyId, "runningAS");
 
             System.out.println("Running antismash for " + assemblyId);
@@ -97,16 +155,17 @@ public class AntismashRunner implements Runnable {
 
             if(exitCode == 0) {
                 transferResults(analysisDir, assemblyId, this.server);
-
+                return true;
             } else {
 //                database.updateRunStatus(assemblyId, "failed");
             }
 
-            latch.countDown();
-
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return false;
     }
 
     public int getExitCode() {
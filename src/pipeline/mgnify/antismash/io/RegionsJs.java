@@ -0,0 +1,66 @@
+package pipeline.mgnify.antismash.io;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Reader for the regions.js file antiSMASH writes next to its HTML output.
+ */
+public class RegionsJs {
+
+    @FunctionalInterface
+    public interface RegionHandler {
+        void region(String recordName, int length, JsonArray productCategories, String anchor, int start, int end,
+                    boolean isContigEdge, String type, JsonArray products, int regionNum) throws Exception;
+    }
+
+    /**
+     * Reads &lt;resDir&gt;/&lt;run&gt;/antismash/regions.js and passes every region to the handler. Returns false if the
+     * run has no regions file.
+     */
+    public static boolean read(String resDir, String run, RegionHandler handler) throws Exception {
+        File antismashDir = new File(resDir + File.separator + run + File.separator + "antismash");
+
+        File regionsFile = new File(antismashDir + File.separator + "regions.js");
+
+        if(!regionsFile.exists()) {
+            return false;
+        }
+
+        String content = new String(Files.readAllBytes(Paths.get(antismashDir + File.separator + "regions.js")));
+        content = content.replace("var recordData = ", "");
+
+        // Parse JSON using javax.json
+        JsonReader jsonReader = Json.createReader(new java.io.StringReader(content));
+        JsonArray records = jsonReader.readArray();
+        jsonReader.close();
+
+        for (int i = 0; i < records.size(); i++) {
+            JsonObject record = records.getJsonObject(i);
+            JsonArray regions = record.getJsonArray("regions");
+            if(regions.size() == 0)
+                continue;
+            String recordName = record.getString("seq_id");
+            int length = record.getInt("length");
+            for (int j = 0; j < regions.size(); j++) {
+                JsonObject region = regions.getJsonObject(j);
+//                JsonArray orfs = region.getJsonArray("orfs"); //get orfs when needed
+                int start = region.getInt("start");
+                int end = region.getInt("end");
+
+                boolean isContigEdge = false;
+                if(start == 1 || end == length)
+                    isContigEdge = true;
+
+                handler.region(recordName, length, region.getJsonArray("product_categories"), region.getString("anchor"),
+                        start, end, isContigEdge, region.getString("type"), region.getJsonArray("products"), j + 1);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,97 @@
+package data.mgnify;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpHeaders;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveRateLimiterTest {
+
+    private static final long LATENCY = 50_000_000L;
+
+    private static HttpHeaders headers(String... namesAndValues) {
+        Map<String, List<String>> map = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            map.put(namesAndValues[i], List.of(namesAndValues[i + 1]));
+        }
+        return HttpHeaders.of(map, (name, value) -> true);
+    }
+
+    @Test
+    void throttledResponseHalvesTheRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0.5, 10);
+        limiter.onResponse(429, headers(), LATENCY);
+        assertEquals(5, limiter.getRate(), 1e-9);
+
+        limiter.onResponse(503, headers(), LATENCY);
+        assertEquals(2.5, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    void rateStaysWithinBounds() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, 4);
+        for (int i = 0; i < 10; i++) {
+            limiter.onFailure();
+        }
+        assertEquals(1, limiter.getRate(), 1e-9);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onResponse(200, headers(), LATENCY);
+        }
+        assertEquals(4, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    void successfulResponsesRaiseTheRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0.5, 10);
+        limiter.onFailure();
+        limiter.onFailure();
+        double lowered = limiter.getRate();
+
+        limiter.onResponse(200, headers(), LATENCY);
+        assertEquals(lowered + 1 / lowered, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    void slowResponseLowersTheRateAfterWarmup() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0.5, 10);
+        for (int i = 0; i < 20; i++) {
+            limiter.onResponse(200, headers(), LATENCY);
+        }
+        limiter.onResponse(200, headers(), 10 * LATENCY);
+        assertEquals(8, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    void announcedQuotaCapsTheRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0.5, 10);
+        limiter.onResponse(200, headers("RateLimit-Remaining", "30", "RateLimit-Reset", "10"), LATENCY);
+        assertEquals(3, limiter.getRate(), 1e-9);
+
+        limiter.onResponse(200, headers("X-RateLimit-Remaining", "0", "X-RateLimit-Reset", "60"), LATENCY);
+        assertEquals(0.5, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    void retryAfterPausesRequests() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100, 1000);
+        limiter.onResponse(429, headers("Retry-After", "1"), LATENCY);
+
+        long start = System.nanoTime();
+        limiter.acquire();
+        assertTrue(System.nanoTime() - start >= 900_000_000L);
+    }
+
+    @Test
+    void parsesRetryAfter() {
+        assertEquals(0, AdaptiveRateLimiter.retryAfterMillis(headers()));
+        assertEquals(120_000, AdaptiveRateLimiter.retryAfterMillis(headers("Retry-After", " 120 ")));
+        assertEquals(0, AdaptiveRateLimiter.retryAfterMillis(headers("Retry-After", "soon")));
+        assertEquals(0, AdaptiveRateLimiter.retryAfterMillis(headers("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT")));
+    }
+}
@@ -0,0 +1,105 @@
+package data.mgnify;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+    private static long millisToAcquire(CircuitBreaker breaker) throws InterruptedException {
+        long start = System.nanoTime();
+        breaker.acquire();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    @Test
+    void staysClosedBelowTheThreshold() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(3, 10_000, 60_000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+
+        assertEquals(0, breaker.getOpenings());
+        assertTrue(millisToAcquire(breaker) < 1000);
+    }
+
+    @Test
+    void opensAfterConsecutiveFailuresAndClosesAfterASuccessfulTrial() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(2, 200, 1000);
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(1, breaker.getOpenings());
+
+        // the trial request waits for the open period
+        assertTrue(millisToAcquire(breaker) >= 150);
+        breaker.onSuccess();
+
+        assertTrue(millisToAcquire(breaker) < 100);
+        assertEquals(1, breaker.getOpenings());
+    }
+
+    @Test
+    void failedTrialOpensForTwiceAsLong() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 1000);
+        breaker.onFailure();
+        breaker.acquire();
+        breaker.onFailure();
+
+        assertEquals(2, breaker.getOpenings());
+        assertTrue(millisToAcquire(breaker) >= 150);
+    }
+
+    @Test
+    void otherCallersWaitForTheTrialRequest() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 1000);
+        breaker.onFailure();
+        breaker.acquire();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            try {
+                breaker.acquire();
+                acquired.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        other.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        breaker.onSuccess();
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        other.join();
+    }
+
+    @Test
+    void cancelledTrialLetsTheNextCallerMakeIt() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 1000);
+        breaker.onFailure();
+        assertTrue(breaker.acquire());
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        boolean[] trial = new boolean[1];
+        Thread other = new Thread(() -> {
+            try {
+                trial[0] = breaker.acquire();
+                acquired.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        other.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        breaker.cancelTrial();
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        other.join();
+        assertTrue(trial[0]);
+        assertEquals(1, breaker.getOpenings());
+    }
+}
@@ -0,0 +1,178 @@
+package data.mgnify;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Serves one file over HTTP with range support and checks how downloads of it resume.
+ */
+class FileDownloaderTest {
+
+    private final byte[] content = new byte[100_000];
+    private volatile String etag = "\"v1\"";
+    // GETs whose body is cut off after half the announced bytes
+    private final AtomicInteger truncatedResponses = new AtomicInteger();
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final List<String> ifRanges = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private String url;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/assembly.fasta.gz", this::serve);
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/assembly.fasta.gz";
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        ranges.add(String.valueOf(range));
+        ifRanges.add(String.valueOf(ifRange));
+        int from = 0;
+        int status = 200;
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + from + "-" + (content.length - 1) + "/" + content.length);
+        }
+        int length = content.length - from;
+        exchange.sendResponseHeaders(status, length);
+        OutputStream body = exchange.getResponseBody();
+        if (truncatedResponses.getAndDecrement() > 0) {
+            body.write(content, from, length / 2);
+            body.flush();
+            // the server closes the connection of a handler that throws
+            throw new IOException("Dropping the connection");
+        }
+        body.write(content, from, length);
+        body.close();
+    }
+
+    @Test
+    void downloadsTheWholeFile() throws IOException {
+        Path target = dir.resolve("assembly.fasta.gz");
+        FileDownloader.get().download(url, target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertFalse(Files.exists(dir.resolve("assembly.fasta.gz.part")));
+        assertEquals(List.of("null"), ranges);
+    }
+
+    @Test
+    void resumesAPartFileLeftByAnEarlierRun() throws IOException {
+        Path target = dir.resolve("assembly.fasta.gz");
+        Files.write(dir.resolve("assembly.fasta.gz.part"), Arrays.copyOf(content, 40_000));
+        Files.writeString(dir.resolve("assembly.fasta.gz.part.validator"), "\"v1\"");
+
+        FileDownloader.get().download(url, target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(List.of("bytes=40000-"), ranges);
+        assertEquals(List.of("\"v1\""), ifRanges);
+        assertFalse(Files.exists(dir.resolve("assembly.fasta.gz.part.validator")));
+    }
+
+    @Test
+    void startsOverWhenTheFileChangedSinceThePartWasWritten() throws IOException {
+        Path target = dir.resolve("assembly.fasta.gz");
+        byte[] stale = new byte[40_000];
+        Arrays.fill(stale, (byte) 7);
+        Files.write(dir.resolve("assembly.fasta.gz.part"), stale);
+        Files.writeString(dir.resolve("assembly.fasta.gz.part.validator"), "\"v1\"");
+        etag = "\"v2\"";
+
+        FileDownloader.get().download(url, target, "SHA-256", sha256(content));
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(List.of("null"), ranges);
+    }
+
+    @Test
+    void startsOverWhenThePartFileHasNoValidator() throws IOException {
+        Path target = dir.resolve("assembly.fasta.gz");
+        Files.write(dir.resolve("assembly.fasta.gz.part"), new byte[40_000]);
+
+        FileDownloader.get().download(url, target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(List.of("null"), ranges);
+    }
+
+    @Test
+    void resumesAfterAnInterruptedTransfer() throws IOException {
+        truncatedResponses.set(1);
+        Path target = dir.resolve("assembly.fasta.gz");
+
+        FileDownloader.get().download(url, target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(2, ranges.size());
+        assertEquals("null", ranges.get(0));
+        assertEquals("bytes=" + content.length / 2 + "-", ranges.get(1));
+    }
+
+    @Test
+    void rejectsAFileWithTheWrongChecksum() {
+        Path target = dir.resolve("assembly.fasta.gz");
+
+        assertThrows(IOException.class, () -> FileDownloader.get().download(url, target, "SHA-256", "00"));
+        assertFalse(Files.exists(target));
+        assertFalse(Files.exists(dir.resolve("assembly.fasta.gz.part")));
+    }
+
+    private static String sha256(byte[] data) throws IOException {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
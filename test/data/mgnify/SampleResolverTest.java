@@ -0,0 +1,138 @@
+package data.mgnify;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Serves samples over HTTP and checks that the resolver shares fetches in flight and retries failed ones. The
+ * resolver is shared by the whole JVM, so every test uses its own sample ids.
+ */
+class SampleResolverTest {
+
+    private static final List<String> UNSET_ATTRIBUTES = List.of("environment-material", "environment-feature",
+            "latitude", "accession", "environment-biome", "sample-desc", "last-update", "collection-date", "species",
+            "analysis-completed", "geo-loc-name", "biosample", "host-tax-id", "longitude", "sample-alias");
+
+    private final AtomicInteger requests = new AtomicInteger();
+    // requests answered with 404 before samples are served
+    private final AtomicInteger failingResponses = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+    private HttpServer server;
+    private String url;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        Files.createDirectories(dir.resolve("samples"));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/samples/", this::serve);
+        server.setExecutor(handlers);
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/samples/";
+    }
+
+    @AfterEach
+    void stopServer() {
+        release.countDown();
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failingResponses.getAndDecrement() > 0) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        String id = exchange.getRequestURI().getPath().substring("/samples/".length());
+        // the API always sends every attribute, null when it is not set
+        StringBuilder attributes = new StringBuilder("\"sample-name\": \"" + id + "\"");
+        for (String attribute : UNSET_ATTRIBUTES) {
+            attributes.append(", \"").append(attribute).append("\": null");
+        }
+        byte[] body = ("{\"data\": {\"id\": \"" + id + "\", \"attributes\": {" + attributes + "}}}")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Test
+    void concurrentRequestsForOneSampleShareOneFetch() throws Exception {
+        String id = "SRS-shared";
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        List<Future<CompletableFuture<Sample>>> calls = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            calls.add(callers.submit(() -> SampleResolver.get().resolve(id, url + id, dir.toString())));
+        }
+        List<CompletableFuture<Sample>> futures = new ArrayList<>();
+        for (Future<CompletableFuture<Sample>> call : calls) {
+            futures.add(call.get(10, TimeUnit.SECONDS));
+        }
+        callers.shutdown();
+        release.countDown();
+
+        Sample sample = futures.get(0).get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<Sample> future : futures) {
+            assertSame(sample, future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(id, sample.getId());
+        assertEquals(id, sample.getAttributes().get("sampleName"));
+        assertEquals(1, requests.get());
+        assertSame(sample, SampleResolver.get().resolve(id, url + id, dir.toString()).join());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void failedFetchIsRetriedOnTheNextRequest() throws Exception {
+        String id = "SRS-retried";
+        failingResponses.set(1);
+        release.countDown();
+
+        CompletableFuture<Sample> failed = SampleResolver.get().resolve(id, url + id, dir.toString());
+        CompletionException error = assertThrows(CompletionException.class, failed::join);
+        assertTrue(error.getCause() instanceof IOException);
+
+        Sample sample = SampleResolver.get().resolve(id, url + id, dir.toString()).get(10, TimeUnit.SECONDS);
+        assertEquals(id, sample.getId());
+        assertEquals(2, requests.get());
+        assertTrue(Files.exists(dir.resolve("samples").resolve(id + ".json")));
+    }
+}
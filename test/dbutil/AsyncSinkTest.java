@@ -0,0 +1,63 @@
+package dbutil;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncSinkTest {
+
+    @Test
+    void closeWaitsForEveryAcceptedRecord() throws InterruptedException {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        AsyncSink<Integer> sink = new AsyncSink<>("numbers", 10, 4, written::addAll);
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        for (int p = 0; p < 4; p++) {
+            int first = p * 100;
+            producers.submit(() -> {
+                for (int i = first; i < first + 100; i++) {
+                    sink.put(i);
+                }
+                return null;
+            });
+        }
+        producers.shutdown();
+        assertTrue(producers.awaitTermination(10, TimeUnit.SECONDS));
+        sink.close();
+
+        assertEquals(400, written.size());
+        assertEquals(400, sink.getWrittenCount());
+        assertEquals(0, sink.getFailedCount());
+        assertThrows(IllegalStateException.class, () -> sink.put(1));
+    }
+
+    @Test
+    void failedBatchIsRetriedRecordByRecord() throws InterruptedException {
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        AsyncSink<String> sink = new AsyncSink<>("runs", 10, 10, batch -> {
+            if (batch.contains("bad")) {
+                throw new IllegalArgumentException("bad record in batch");
+            }
+            written.addAll(batch);
+        });
+        try (sink) {
+            sink.put("ERZ1");
+            sink.put("bad");
+            sink.put("ERZ2");
+        }
+
+        assertTrue(written.containsAll(List.of("ERZ1", "ERZ2")));
+        assertEquals(2, sink.getWrittenCount());
+        assertEquals(1, sink.getFailedCount());
+        assertEquals(List.of("bad"), sink.takeFailures());
+        assertTrue(sink.takeFailures().isEmpty());
+    }
+}
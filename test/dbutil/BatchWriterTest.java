@@ -0,0 +1,171 @@
+package dbutil;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchWriterTest {
+
+    private static final String URL = "jdbc:h2:mem:batchwriter;DB_CLOSE_DELAY=-1";
+    private static final int POOL_SIZE = 2;
+    private static final String INSERT = "INSERT INTO runs (assembly, status) VALUES (?, ?)";
+
+    private ScheduledExecutorService scheduler;
+    private ConnectionPool pool;
+    private Connection reader;
+    private final AtomicInteger commits = new AtomicInteger();
+
+    @BeforeEach
+    void createTable() throws SQLException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        pool = new ConnectionPool(URL, new Properties(), POOL_SIZE, 1000, 60_000, 30_000, 5, 10);
+        reader = DriverManager.getConnection(URL);
+        try (Statement statement = reader.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS runs");
+            statement.execute("CREATE TABLE runs (assembly VARCHAR(255) PRIMARY KEY, status VARCHAR(255))");
+        }
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        reader.close();
+        pool.close();
+        scheduler.shutdownNow();
+    }
+
+    private BatchWriter writer(int batchSize, int commitInterval) {
+        return writer("insertRun", batchSize, commitInterval);
+    }
+
+    private BatchWriter writer(String name, int batchSize, int commitInterval) {
+        // the flush interval is long enough that only the test triggers flushes
+        return new BatchWriter(name, INSERT, pool, batchSize, 3_600_000, commitInterval, scheduler,
+                new QueryStats(), commits::incrementAndGet);
+    }
+
+    private int countRows() throws SQLException {
+        try (Statement statement = reader.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM runs")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    @Test
+    void rowsBecomeVisibleWhenCommitted() throws SQLException {
+        try (BatchWriter writer = writer(2, 100)) {
+            writer.add("ERZ1", null);
+            writer.add("ERZ2", null);
+            writer.add("ERZ3", null);
+            assertEquals(0, countRows());
+
+            writer.flushAndCommit();
+            assertEquals(3, countRows());
+            assertEquals(3, writer.getWrittenCount());
+            assertEquals(1, commits.get());
+        }
+    }
+
+    @Test
+    void commitsEveryCommitIntervalRows() throws SQLException {
+        try (BatchWriter writer = writer(2, 4)) {
+            for (int i = 0; i < 5; i++) {
+                writer.add("ERZ" + i, null);
+            }
+            assertEquals(4, countRows());
+        }
+        assertEquals(5, countRows());
+    }
+
+    @Test
+    void failingRowDoesNotLoseTheRestOfTheTransaction() throws SQLException {
+        try (BatchWriter writer = writer(3, 100)) {
+            writer.add("ERZ1", "success");
+            writer.flushAndCommit();
+
+            writer.add("ERZ2", null);
+            writer.add("ERZ3", null);
+            // duplicate key: fails the batch and the transaction it belongs to
+            writer.add("ERZ1", "duplicate");
+            writer.add("ERZ4", null);
+            writer.flushAndCommit();
+
+            assertEquals(4, countRows());
+            assertEquals(4, writer.getWrittenCount());
+            assertEquals(1, writer.getFailedCount());
+
+            List<BatchWriter.Failure> failures = writer.takeFailures();
+            assertEquals(1, failures.size());
+            assertEquals("insertRun", failures.get(0).getWriter());
+            assertArrayEquals(new Object[]{"ERZ1", "duplicate"}, failures.get(0).getValues());
+            assertTrue(writer.takeFailures().isEmpty());
+        }
+    }
+
+    @Test
+    void keepsABoundedNumberOfFailures() throws SQLException {
+        try (BatchWriter writer = writer(100, 100)) {
+            writer.add("ERZ1", null);
+            writer.flushAndCommit();
+            for (int i = 0; i < BatchWriter.MAX_KEPT_FAILURES + 10; i++) {
+                writer.add("ERZ1", null);
+            }
+            writer.flushAndCommit();
+
+            assertEquals(BatchWriter.MAX_KEPT_FAILURES + 10, writer.getFailedCount());
+            assertEquals(BatchWriter.MAX_KEPT_FAILURES, writer.takeFailures().size());
+        }
+    }
+
+    @Test
+    void closedWriterRejectsRows() throws SQLException {
+        BatchWriter writer = writer(10, 10);
+        writer.add("ERZ1", null);
+        writer.close();
+
+        assertEquals(1, countRows());
+        assertThrows(IllegalStateException.class, () -> writer.add("ERZ2", null));
+    }
+
+    @Test
+    void moreWritersThanPooledConnections() throws SQLException {
+        List<BatchWriter> writers = new ArrayList<>();
+        for (int i = 0; i < POOL_SIZE * 2; i++) {
+            BatchWriter writer = writer("insertRun" + i, 10, 100);
+            writer.add("ERZ" + i, null);
+            writers.add(writer);
+        }
+
+        // buffered rows hold no connection
+        assertEquals(0, pool.getActiveCount());
+        for (BatchWriter writer : writers) {
+            writer.flushAndCommit();
+        }
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(POOL_SIZE * 2, countRows());
+
+        try (Connection connection = pool.getConnection()) {
+            assertTrue(connection.isValid(1));
+        }
+        for (BatchWriter writer : writers) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package dbutil;
+
+import data.mgnify.Assembly;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pipeline.mgnify.GetBiomeTypes;
+
+import javax.sql.rowset.CachedRowSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs every {@link AtlasDatabase} write and read against the embedded H2 database, so SQL that only PostgreSQL
+ * accepts shows up here. Failed statements are only logged by the database, so each test reads its rows back.
+ */
+class EmbeddedDatabaseTest {
+
+    private static final String[] TABLES = {"mgnify_asms", "sample_metadata", "antismash_runs", "protoclusters",
+            "bigscape_clustering", "bigscape_networks", "biomes", "regions", "bigslice_gcf_membership"};
+
+    private EmbeddedDatabase database;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void open() {
+        database = new EmbeddedDatabase();
+        deleteRows();
+    }
+
+    @AfterEach
+    void close() {
+        deleteRows();
+        database.closeConnection();
+    }
+
+    private void deleteRows() {
+        for (String table : TABLES) {
+            database.executeUpdate("DELETE FROM " + table);
+        }
+    }
+
+    private int count(String sql, Object... params) {
+        return database.executeQuery(sql, resultSet -> resultSet.next() ? resultSet.getInt(1) : -1, params);
+    }
+
+    private String[] stringArray(String sql, Object... params) {
+        return database.executeQuery(sql, resultSet -> {
+            resultSet.next();
+            Object[] values = (Object[]) resultSet.getArray(1).getArray();
+            return Arrays.copyOf(values, values.length, String[].class);
+        }, params);
+    }
+
+    private static void load(RowLoader loader, Object... row) throws SQLException {
+        try (loader) {
+            loader.addRow(row);
+            loader.commit();
+        }
+    }
+
+    private Assembly assembly(String id, String sampleId) throws IOException {
+        Files.createDirectories(dir.resolve("analyses"));
+        Files.createDirectories(dir.resolve("samples"));
+        Files.writeString(dir.resolve("samples").resolve(sampleId + ".json"), "{\"data\": {\"attributes\": {" +
+                "\"environment-material\": \"soil\", \"environment-feature\": \"field\", \"latitude\": 48.5, " +
+                "\"accession\": \"" + sampleId + "\", \"environment-biome\": \"root:Environmental\", " +
+                "\"sample-desc\": \"\", \"last-update\": \"2024-01-01\", \"collection-date\": \"2023-05-04\", " +
+                "\"sample-name\": \"s\", \"species\": \"metagenome\", \"analysis-completed\": \"2024-01-01\", " +
+                "\"geo-loc-name\": \"Germany\", \"biosample\": \"SAMEA1\", \"host-tax-id\": 9606, " +
+                "\"longitude\": 9.0, \"sample-alias\": \"s\", " +
+                "\"sample-metadata\": [{\"key\": \"depth\", \"value\": \"10 cm\"}]}}}");
+        Path file = dir.resolve("analyses").resolve(id + ".json");
+        Files.writeString(file, "{\"id\": \"" + id + "\", \"attributes\": {" +
+                "\"pipeline-version\": \"5.0\", \"experiment-type\": \"assembly\", " +
+                "\"analysis-summary\": [{\"key\": \"Submitted nucleotide sequences\", \"value\": \"12\"}], " +
+                "\"analysis-status\": \"completed\", \"accession\": \"" + id + "\", \"is-private\": false, " +
+                "\"complete-time\": \"2024-01-01\", \"instrument-platform\": \"ILLUMINA\", " +
+                "\"instrument-model\": \"NovaSeq\"}, \"relationships\": {" +
+                "\"sample\": {\"data\": {\"id\": \"" + sampleId + "\"}, \"links\": {\"related\": \"https://sample\"}}, " +
+                "\"downloads\": {\"links\": {\"related\": \"https://downloads/" + id + "\"}}}}");
+        return new Assembly(file.toFile());
+    }
+
+    @Test
+    void queuesAndFinishesRuns() throws IOException {
+        database.insertAssemblies(List.of(assembly("ERZ1", "ERS1")));
+        assertEquals(List.of("ERZ1"), database.getAllAssemblyAccessions());
+        try (Stream<String> assemblies = database.streamAllAssemblyAccessions()) {
+            assertEquals(List.of("ERZ1"), assemblies.collect(Collectors.toList()));
+        }
+        assertEquals(1, count("SELECT COUNT(*) FROM sample_metadata WHERE sample = ? AND meta_value = ?",
+                "ERS1", "10 cm"));
+
+        database.insertRun("ERZ1", "7.1", "1.0", "local", null, null);
+        assertArrayEquals(new String[]{"ERZ1", "https://downloads/ERZ1"}, database.getNextInQueueRand());
+        assertNull(database.getRunStatus("ERZ1"));
+        assertEquals("", database.getRunStatus("ERZ2"));
+
+        database.updateRunStatus("ERZ1", "success");
+        assertEquals("success", database.getRunStatus("ERZ1"));
+        assertEquals(List.of("ERZ1"), database.getAllFinishedRuns());
+        try (Stream<String> runs = database.streamAllFinishedRuns()) {
+            assertEquals(List.of("ERZ1"), runs.collect(Collectors.toList()));
+        }
+        // runs without a results path are new too
+        assertEquals(List.of("ERZ1"), database.getNewFinishedRuns());
+
+        database.updateDetails("ERZ1", "7.1", "1.0", "denbi", "/vol/results/ERZ1", "success");
+        assertTrue(database.getNewFinishedRuns().isEmpty());
+        assertTrue(database.flush().isEmpty());
+    }
+
+    @Test
+    void preloadedKeysSkipExistingRows() {
+        database.insertRun("ERZ1", "7.1", "1.0", "local", null, null);
+        database.addBiome(new GetBiomeTypes.Biome("root:Environmental", 3, "Environmental", "root:Environmental",
+                "samples", "genomes", "children", "studies"));
+        assertTrue(database.flush().isEmpty());
+
+        KeySet runs = database.preloadKeys("antismash_runs");
+        KeySet biomes = database.preloadKeys("biomes");
+        database.insertRun("ERZ1", "7.1", "1.0", "local", null, "success");
+        database.addBiome(new GetBiomeTypes.Biome("root:Environmental", 3, "Environmental", "root:Environmental",
+                "samples", "genomes", "children", "studies"));
+        assertTrue(database.flush().isEmpty());
+
+        assertEquals(1, runs.getSkippedCount());
+        assertEquals(1, biomes.getSkippedCount());
+        assertEquals(1, count("SELECT COUNT(*) FROM biomes"));
+        assertNull(database.getRunStatus("ERZ1"));
+    }
+
+    @Test
+    void readsBigscapeFamilies() {
+        database.insertClustering("bgc1", "NRPS", 7, 0.3, "ERZ1");
+        database.insertClustering("bgc2", "NRPS", 7, 0.3, "ERZ1");
+        database.insertClustering("bgc3", "NRPS", 8, 0.3, "ERZ1");
+        database.insertNetworkEdge("bgc1", "bgc2", 0.1, 0.9, 0.5, 0.5, 0.5, 0.4, 0.6, 2, 3, "NRPS", "NRPS", "NRPS", 0.3);
+        assertTrue(database.flush().isEmpty());
+
+        assertEquals(List.of("bgc1", "bgc2"), database.getGCFFamily("bgc1").stream().sorted().collect(Collectors.toList()));
+        assertEquals("7", database.getGCFFamilyName("bgc2"));
+        assertEquals(1, count("SELECT COUNT(*) FROM bigscape_networks WHERE clustername1 = ?", "bgc1"));
+    }
+
+    @Test
+    void gcfMembershipUpdatesProtoclusters() {
+        database.insertPC("ERZ1", "contig1", "1", 1, "NRPS", "NRPS", "False", "ERZ1/contig1.region001.gbk");
+        assertTrue(database.flush().isEmpty());
+        assertEquals(1, database.executeUpdate("UPDATE protoclusters SET bigslice_bgc_id = ? WHERE assembly = ?",
+                5, "ERZ1"));
+
+        database.insertGCFMembership("9", "5", "0.25", 900);
+        assertTrue(database.flush().isEmpty());
+
+        assertEquals(1, count("SELECT COUNT(*) FROM bigslice_gcf_membership WHERE gcf_id = 9 AND bgc_id = 5"));
+        assertEquals(9, count("SELECT bigslice_gcf_id FROM protoclusters WHERE assembly = ?", "ERZ1"));
+    }
+
+    @Test
+    void insertsRegionsWithProductArrays() {
+        database.insertRegion("ERZ1", "contig1", 5000, "[\"NRPS\",\"PKS\"]", "anchor", 10, 900, false, "NRPS",
+                "[\"NRPS-like\",\"T1PKS\"]", 1);
+        database.insertRegion("ERZ1", "contig2", 2, "[\"terpene\"]", "true", "3", "1-100");
+        assertTrue(database.flush().isEmpty());
+
+        assertArrayEquals(new String[]{"NRPS", "PKS"},
+                stringArray("SELECT product_categories FROM regions WHERE contig_name = ?", "contig1"));
+        assertArrayEquals(new String[]{"NRPS-like", "T1PKS"},
+                stringArray("SELECT products FROM regions WHERE contig_name = ?", "contig1"));
+        assertArrayEquals(new String[]{"terpene"},
+                stringArray("SELECT products FROM regions WHERE contig_name = ?", "contig2"));
+        assertEquals(3, count("SELECT region_number FROM regions WHERE contig_name = ?", "contig2"));
+    }
+
+    @Test
+    void loadsRowsThroughTheNamedLoaders() throws SQLException {
+        load(database.protoclusterLoader(), "ERZ1", "contig1", "1", 1, "NRPS", "NRPS", "False", "region001.gbk");
+        load(database.clusteringLoader(), "bgc1", "NRPS", 7, 0.3, "ERZ1");
+        load(database.networkEdgeLoader(), "bgc1", "bgc2", 0.1, 0.9, 0.5, 0.5, 0.5, 0.4, 0.6, 2, 3, "NRPS", "NRPS",
+                "NRPS", 0.3);
+        load(database.regionLoader(), "ERZ1", "contig1", 5000, new String[]{"NRPS"}, "anchor", 10, 900, false, "NRPS",
+                List.of("NRPS-like"), 1);
+        load(database.gcfMembershipLoader(), 9, 5, 0.25, 900);
+
+        assertEquals(1, count("SELECT COUNT(*) FROM protoclusters"));
+        assertEquals("7", database.getGCFFamilyName("bgc1"));
+        assertEquals(1, count("SELECT COUNT(*) FROM bigscape_networks"));
+        assertArrayEquals(new String[]{"NRPS-like"}, stringArray("SELECT products FROM regions"));
+        assertEquals(1, count("SELECT COUNT(*) FROM bigslice_gcf_membership"));
+    }
+
+    @Test
+    void loaderClosedWithoutCommitWritesNothing() throws SQLException {
+        try (RowLoader loader = database.copyLoader("bigscape_clustering", "bgc_name", "family_number")) {
+            loader.addRow("bgc1", 7);
+        }
+        RowLoader cancelled = database.copyLoader("bigscape_clustering", "bgc_name", "family_number");
+        cancelled.addRow("bgc2", 8);
+        cancelled.cancel();
+
+        assertEquals(0, count("SELECT COUNT(*) FROM bigscape_clustering"));
+    }
+
+    @Test
+    void stagingTablesStartEmpty() {
+        database.prepareStagingTable("staging_test", "bgc_name VARCHAR(255), family_number INT");
+        database.executeUpdate("INSERT INTO staging_test VALUES (?, ?)", "bgc1", 7);
+        database.prepareStagingTable("staging_test", "bgc_name VARCHAR(255), family_number INT");
+
+        assertEquals(0, count("SELECT COUNT(*) FROM staging_test"));
+        database.executeUpdate("DROP TABLE staging_test");
+    }
+
+    @Test
+    void genericQueries() throws SQLException {
+        database.executeUpdate("INSERT INTO biomes (id, samplescount) VALUES ('root:a', 1)");
+        database.executeUpdate("INSERT INTO biomes (id, samplescount) VALUES (?, ?)", "root:b", 2);
+
+        CachedRowSet rows = database.executeQuery("SELECT id FROM biomes ORDER BY id");
+        assertNotNull(rows);
+        assertEquals(2, rows.size());
+        assertEquals(Integer.valueOf(2), database.executeQuery("SELECT COUNT(*) FROM biomes",
+                resultSet -> resultSet.next() ? resultSet.getInt(1) : -1));
+        try (Stream<String> ids = database.stream("SELECT id FROM biomes ORDER BY id", 1, rs -> rs.getString(1))) {
+            assertEquals(List.of("root:a", "root:b"), ids.collect(Collectors.toList()));
+        }
+
+        String sql = "SELECT samplescount FROM biomes WHERE id = ?";
+        ResultSetHandler<Integer> samples = resultSet -> resultSet.next() ? resultSet.getInt(1) : -1;
+        assertEquals(2, database.cachedQuery("biomes", sql, samples, "root:b"));
+        database.executeUpdate("UPDATE biomes SET samplescount = 5 WHERE id = 'root:b'");
+        assertEquals(5, database.cachedQuery("biomes", sql, samples, "root:b"));
+        database.invalidateCache("biomes");
+        assertEquals(5, database.cachedQuery("biomes", sql, samples, "root:b"));
+
+        database.migrate();
+        database.printIndexReport();
+        assertTrue(database.getQueryStats().getEntries().containsKey("executeQuery"));
+        database.printQueryStats();
+    }
+}
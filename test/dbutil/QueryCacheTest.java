@@ -0,0 +1,112 @@
+package dbutil;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class QueryCacheTest {
+
+    private static final String SQL = "SELECT family_number FROM bigscape_clustering WHERE bgc_name = ?";
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private String load(QueryCache cache, String table, Object... params) throws SQLException {
+        return cache.get(table, SQL, params, () -> "result " + loads.incrementAndGet());
+    }
+
+    @Test
+    void repeatedQueryIsLoadedOnce() throws SQLException {
+        QueryCache cache = new QueryCache(10, 60_000);
+
+        assertEquals("result 1", load(cache, "bigscape_clustering", "bgc1"));
+        assertEquals("result 1", load(cache, "bigscape_clustering", "bgc1"));
+        assertEquals("result 2", load(cache, "bigscape_clustering", "bgc2"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void invalidateDropsOnlyThatTable() throws SQLException {
+        QueryCache cache = new QueryCache(10, 60_000);
+        load(cache, "bigscape_clustering", "bgc1");
+        load(cache, "regions", "bgc1");
+
+        cache.invalidate("bigscape_clustering");
+
+        assertEquals(1, cache.size());
+        assertEquals("result 3", load(cache, "bigscape_clustering", "bgc1"));
+        assertEquals("result 2", load(cache, "regions", "bgc1"));
+    }
+
+    @Test
+    void resultLoadedDuringAnInvalidationIsNotCached() throws SQLException {
+        QueryCache cache = new QueryCache(10, 60_000);
+
+        String first = cache.get("regions", SQL, new Object[]{"bgc1"}, () -> {
+            cache.invalidate("regions");
+            return "stale";
+        });
+
+        assertEquals("stale", first);
+        assertEquals(0, cache.size());
+        assertEquals("result 1", load(cache, "regions", "bgc1"));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws SQLException {
+        QueryCache cache = new QueryCache(2, 60_000);
+        load(cache, "regions", "a");
+        load(cache, "regions", "b");
+        load(cache, "regions", "a");
+        load(cache, "regions", "c");
+
+        assertEquals(2, cache.size());
+        assertEquals("result 1", load(cache, "regions", "a"));
+        assertEquals("result 4", load(cache, "regions", "b"));
+    }
+
+    @Test
+    void expiredEntriesAreLoadedAgain() throws SQLException {
+        QueryCache cache = new QueryCache(10, 0);
+        load(cache, "regions", "a");
+
+        assertEquals("result 2", load(cache, "regions", "a"));
+    }
+
+    @Test
+    void failedQueryIsNotCached() throws SQLException {
+        QueryCache cache = new QueryCache(10, 60_000);
+
+        assertThrows(SQLException.class, () -> cache.get("regions", SQL, new Object[]{"a"}, () -> {
+            throw new SQLException("connection lost");
+        }));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void tableNamesIgnoreSchemaAndCase() {
+        assertEquals("regions", JdbcDatabase.cacheTable("regions"));
+        assertEquals("regions", JdbcDatabase.cacheTable("public.Regions"));
+        assertEquals("bigslice_gcf", JdbcDatabase.cacheTable("BIGSLICE_GCF"));
+    }
+
+    @Test
+    void writesThroughTheDatabaseInvalidateCachedReads() {
+        EmbeddedDatabase database = new EmbeddedDatabase();
+        String sql = "SELECT COUNT(*) FROM biomes WHERE id = ?";
+        ResultSetHandler<Integer> count = resultSet -> resultSet.next() ? resultSet.getInt(1) : -1;
+        try {
+            assertEquals(0, database.cachedQuery("Public.Biomes", sql, count, "root:test"));
+
+            database.executeUpdate("INSERT INTO public.biomes (id) VALUES (?)", "root:test");
+
+            assertEquals(1, database.cachedQuery("biomes", sql, count, "root:test"));
+        } finally {
+            database.executeUpdate("DELETE FROM biomes WHERE id = ?", "root:test");
+            database.closeConnection();
+        }
+    }
+}